@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+/**
+ * Generalized arc consistency for the all-different constraint of a house
+ * (Régin's matching filter). A house has as many cells as there are values,
+ * so a perfect matching of cells to candidates has to exist, and a candidate
+ * outside the matching can be used iff its cell and the cell matched to the
+ * value lie in the same strongly connected component of the alternating
+ * graph. One instance must only be used by one thread at a time.
+ *
+ * @author Sora Steenvoort
+ */
+class AllDifferentFilter {
+
+    final int n;
+    private final int[] cellOf;  // value -> position in the house, -1 if free
+    private final int[] valueOf; // position -> matched value
+    private final int[] seen;
+    private int round = 0;
+    // Tarjan
+    private final int[] index, low, comp, stack;
+    private int counter, sp, comps;
+    private final int[] masks;
+    final int[] changed; // positions whose candidates were reduced
+    int changedCt;
+
+    AllDifferentFilter(int symbols) {
+        n = symbols;
+        cellOf = new int[n];
+        valueOf = new int[n];
+        seen = new int[n];
+        index = new int[n];
+        low = new int[n];
+        comp = new int[n];
+        stack = new int[n];
+        masks = new int[n];
+        changed = new int[n];
+    }
+
+    /**
+     * Removes the candidates of the house cells that belong to no perfect
+     * matching, listing the affected positions in changed.
+     *
+     * @return false if no perfect matching exists
+     */
+    boolean filter(int[] cand, int[] house) {
+        changedCt = 0;
+        for (int k = 0; k < n; k++) {
+            masks[k] = cand[house[k]];
+            cellOf[k] = -1;
+        }
+        for (int k = 0; k < n; k++) {
+            round++;
+            if (!augment(k)) {
+                return false;
+            }
+        }
+        counter = sp = comps = 0;
+        for (int k = 0; k < n; k++) {
+            index[k] = -1;
+        }
+        for (int k = 0; k < n; k++) {
+            if (index[k] == -1) {
+                strongConnect(k);
+            }
+        }
+        for (int k = 0; k < n; k++) {
+            int m = masks[k];
+            for (int r = m & ~(1 << valueOf[k]); r != 0; r &= r - 1) {
+                int v = Integer.numberOfTrailingZeros(r);
+                if (comp[cellOf[v]] != comp[k]) {
+                    m &= ~(1 << v);
+                }
+            }
+            if (m != masks[k]) {
+                cand[house[k]] = m;
+                changed[changedCt++] = k;
+            }
+        }
+        return true;
+    }
+
+    private boolean augment(int k) {
+        for (int r = masks[k]; r != 0; r &= r - 1) {
+            int v = Integer.numberOfTrailingZeros(r);
+            if (seen[v] == round) {
+                continue;
+            }
+            seen[v] = round;
+            if (cellOf[v] == -1 || augment(cellOf[v])) {
+                cellOf[v] = k;
+                valueOf[k] = v;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tarjan's algorithm on the cells, k leading to cellOf[v] for every
+     * candidate v of k.
+     */
+    private void strongConnect(int k) {
+        index[k] = low[k] = counter++;
+        stack[sp++] = k;
+        comp[k] = -1;
+        for (int r = masks[k] & ~(1 << valueOf[k]); r != 0; r &= r - 1) {
+            int j = cellOf[Integer.numberOfTrailingZeros(r)];
+            if (index[j] == -1) {
+                strongConnect(j);
+                low[k] = Math.min(low[k], low[j]);
+            } else if (comp[j] == -1) {
+                low[k] = Math.min(low[k], index[j]);
+            }
+        }
+        if (low[k] == index[k]) {
+            int j;
+            do {
+                j = stack[--sp];
+                comp[j] = comps;
+            } while (j != k);
+            comps++;
+        }
+    }
+}
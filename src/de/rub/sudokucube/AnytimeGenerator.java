@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Puzzle generator returning a unique puzzle right away and improving it in
+ * the background until its time budget is used up. The first puzzle comes
+ * from removing clues greedily in random order, which already gives a
+ * minimal puzzle. The refinement restarts the greedy removal, either from
+ * the solution or from the best puzzle with a few clues put back, and keeps
+ * a result if it is closer to the target rating or has fewer clues. Next to
+ * it SudokuToolkit.randomPuzzleFromSolution searches the removal orders of
+ * the solution on a fork/join pool, and every deeper state it reaches is
+ * offered the same way.
+ *
+ * @author Sora Steenvoort
+ */
+public class AnytimeGenerator {
+
+    public interface Listener {
+
+        /**
+         * Called on a generator thread whenever a better puzzle is found,
+         * one call at a time and never with a puzzle worse than the last.
+         */
+        void improved(AnytimeGenerator g, Sudoku puzzle);
+    }
+
+    static final int PERTURBATION = 4; // clues put back per local restart
+
+    final SudokuTopology topo;
+    final int[] solution;
+    final long budget;
+    private final Random rnd = new Random();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private UnavoidableSets ua = null; // set by the refinement
+    private int target = -1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int[] best = null;
+    private int bestClues, bestRating;
+    private Thread worker = null, searcher = null;
+    private volatile boolean stopped = false;
+    private final SudokuToolkit.ClueMasks masks = new SudokuToolkit.ClueMasks(rnd) {
+        @Override
+        void deeper(long[] mask, int depth) {
+            // called on the pool threads, each rates with a solver of its own
+            AnytimeGenerator.this.offer(topo.encode(toSudoku(mask)), new SudokuSolver(topo));
+        }
+    };
+
+    /**
+     * @param sln a full solution grid
+     * @param budgetMillis time for the refinement
+     */
+    public AnytimeGenerator(Sudoku sln, long budgetMillis) {
+        topo = SudokuTopology.of(sln);
+        solution = topo.encode(sln);
+        budget = budgetMillis;
+    }
+
+    /**
+     * Prefer puzzles of the given SudokuSolver.rate(), -1 (the default)
+     * meaning puzzles that cannot be solved by singles alone.
+     */
+    public void setTargetRating(int rating) {
+        target = rating;
+    }
+
+    /**
+     * Number of threads of the removal order search, by default one per
+     * processor.
+     */
+    public void setThreads(int n) {
+        threads = Math.max(1, n);
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Generates the first puzzle and starts the refinement.
+     *
+     * @return the first puzzle
+     */
+    public synchronized Sudoku start() {
+        if (worker != null) {
+            throw new IllegalStateException("AnytimeGenerator already started!");
+        }
+        SudokuSolver solver = newSolver();
+        offer(minimize(solution.clone(), solver), solver);
+        final long deadline = System.currentTimeMillis() + budget;
+        worker = new Thread("AnytimeGenerator") {
+            @Override
+            public void run() {
+                refine(deadline);
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+        if (budget > 0) {
+            searcher = new Thread("AnytimeGenerator-search") {
+                @Override
+                public void run() {
+                    search(deadline);
+                }
+            };
+            searcher.setDaemon(true);
+            searcher.start();
+        }
+        return getBest();
+    }
+
+    public synchronized Sudoku getBest() {
+        return best == null ? null : topo.decode(best);
+    }
+
+    public synchronized int getClues() {
+        return bestClues;
+    }
+
+    public synchronized int getRating() {
+        return bestRating;
+    }
+
+    /**
+     * Stops the refinement, getBest() keeps the best puzzle found.
+     */
+    public void cancel() {
+        stopped = true;
+        masks.cancel();
+    }
+
+    /**
+     * Waits for the refinement to finish.
+     *
+     * @return the best puzzle
+     */
+    public Sudoku await() throws InterruptedException {
+        Thread w, s;
+        synchronized (this) {
+            w = worker;
+            s = searcher;
+        }
+        if (w != null) {
+            w.join();
+        }
+        if (s != null) {
+            s.join();
+        }
+        return getBest();
+    }
+
+    private void refine(long deadline) {
+        // only worth computing once many puzzles are tried
+        ua = UnavoidableSets.of(topo, solution);
+        SudokuSolver solver = newSolver();
+        boolean local = false;
+        while (!stopped && System.currentTimeMillis() < deadline) {
+            int[] cells;
+            if (local) {
+                synchronized (this) {
+                    cells = best.clone();
+                }
+                for (int k = 0; k < PERTURBATION; k++) {
+                    int i = rnd.nextInt(topo.size);
+                    cells[i] = solution[i];
+                }
+            } else {
+                cells = solution.clone();
+            }
+            offer(minimize(cells, solver), solver);
+            local = !local;
+        }
+    }
+
+    /**
+     * Runs the removal order search until the deadline and offers the
+     * puzzle it picks among the deepest states.
+     */
+    private void search(long deadline) {
+        try {
+            Sudoku puz = SudokuToolkit.randomPuzzleFromSolution(topo.decode(solution), threads, deadline, masks);
+            offer(topo.encode(puz), new SudokuSolver(topo));
+        } catch (Exception e) {
+            // no state reached before the deadline, the restarts have theirs
+        }
+    }
+
+    /**
+     * Uniqueness checks on near-minimal clue sets have heavy-tailed run
+     * times, so the solvers use restarts.
+     */
+    private SudokuSolver newSolver() {
+        SudokuSolver solver = new SudokuSolver(topo);
+        solver.setRestarts(new Random(rnd.nextLong()), SudokuSolver.DEFAULT_RESTART_UNIT);
+        return solver;
+    }
+
+    /**
+     * Removes the clues of cells in random order as long as the solution
+     * stays unique.
+     */
+    private int[] minimize(int[] cells, SudokuSolver solver) {
+        int[] order = new int[topo.size];
+        for (int i = 0; i < order.length; i++) {
+            int k = rnd.nextInt(i + 1);
+            order[i] = order[k];
+            order[k] = i;
+        }
+        long[] mask = new long[SudokuTopology.words(topo.size)];
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != 0) {
+                mask[i >> 6] |= 1L << i;
+            }
+        }
+        for (int i : order) {
+            if (stopped) {
+                break;
+            }
+            if (cells[i] == 0) {
+                continue;
+            }
+            mask[i >> 6] &= ~(1L << i);
+            cells[i] = 0;
+            if ((ua != null && !ua.hitsAll(mask)) || solver.count(cells, 2) != 1) {
+                mask[i >> 6] |= 1L << i;
+                cells[i] = solution[i];
+            }
+        }
+        return cells;
+    }
+
+    private int distance(int rating) {
+        if (rating == target) {
+            return 0;
+        }
+        if (rating < 0 || target < 0) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.abs(rating - target);
+    }
+
+    private void offer(int[] cells, SudokuSolver solver) {
+        int clues = 0;
+        for (int c : cells) {
+            if (c != 0) {
+                clues++;
+            }
+        }
+        int rating = solver.rate(cells);
+        synchronized (this) {
+            if (best != null) {
+                int d = distance(rating), bd = distance(bestRating);
+                if (d > bd || (d == bd && clues >= bestClues)) {
+                    return;
+                }
+            }
+            best = cells;
+            bestClues = clues;
+            bestRating = rating;
+        }
+        Sudoku puz = topo.decode(cells);
+        synchronized (listeners) {
+            synchronized (this) {
+                if (best != cells) {
+                    return; // superseded, the finder of the better one reports it
+                }
+            }
+            for (Listener l : listeners) {
+                l.improved(this, puz);
+            }
+        }
+    }
+}
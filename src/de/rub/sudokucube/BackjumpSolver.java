@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Forward checking search with conflict-directed backjumping (FC-CBJ) and
+ * nogood learning. Every assignment, given, decided or forced, gets its own
+ * level, and each cell remembers the levels that pruned its candidates.
+ * Naked and hidden singles, the propagation of SudokuSolver, are assigned
+ * before any branching, each on a level of its own whose reason joins the
+ * conflict set when it fails. Only branching levels count as nodes. When all
+ * values of a level fail, the search jumps back to the latest level of the
+ * conflict set instead of the previous one, and small conflict sets are
+ * stored as nogoods. A nogood only names cell values, so it holds for every
+ * board of the class and the store is kept across calls of count(), which
+ * helps when similar boards are probed repeatedly. One instance must only be
+ * used by one thread at a time.
+ *
+ * @author Sora Steenvoort
+ */
+public class BackjumpSolver implements SolutionCounter {
+
+    static final int MAX_NOGOOD = 16;
+    static final int DEFAULT_STORE = 4096;
+
+    final SudokuTopology topo;
+    final int size, symbols, words;
+    private final int[] dom;       // candidate masks
+    private final int[] val;       // assigned value (bit index) or -1
+    private final int[] levelOf;   // level of an assigned cell
+    private final int[] varAt;     // cell assigned at a level
+    private final int[] tried;     // values left to try at a level
+    private final boolean[] solvedBelow;
+    private final long[][] pastFC; // levels that pruned a cell
+    private final long[][] conf;   // conflict set of a level
+    private final long[][] reason; // levels forcing a hidden single
+    private final boolean[] branching;
+    private final long[] scratch;
+    private int forcedBit;         // value of the cell chosen by select(), 0 to try all
+    private final long[] forcedReason;
+    private final int[] trail, trailStart, domBefore;
+    private int trailTop;
+    private final NogoodStore nogoods;
+    private volatile boolean cancelled = false;
+    long nodes, backjumps, nogoodHits;
+
+    public BackjumpSolver(SudokuTopology topology) {
+        this(topology, DEFAULT_STORE);
+    }
+
+    /**
+     * @param capacity the number of nogoods kept
+     */
+    public BackjumpSolver(SudokuTopology topology, int capacity) {
+        topo = topology;
+        size = topo.size;
+        symbols = topo.symbols;
+        words = SudokuTopology.words(size + 1);
+        dom = new int[size];
+        val = new int[size];
+        levelOf = new int[size];
+        varAt = new int[size + 1];
+        tried = new int[size + 1];
+        solvedBelow = new boolean[size + 1];
+        pastFC = new long[size][words];
+        conf = new long[size + 1][words];
+        reason = new long[size + 1][words];
+        branching = new boolean[size + 1];
+        scratch = new long[words];
+        forcedReason = new long[words];
+        int maxPeers = 0;
+        for (int[] p : topo.peers) {
+            maxPeers = Math.max(maxPeers, p.length);
+        }
+        trail = new int[(size + 1) * maxPeers];
+        trailStart = new int[size + 2];
+        domBefore = new int[size + 1];
+        nogoods = new NogoodStore(capacity, size * symbols);
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes;
+    }
+
+    public long getBackjumps() {
+        return backjumps;
+    }
+
+    public long getNogoodHits() {
+        return nogoodHits;
+    }
+
+    public int getNogoodCount() {
+        return nogoods.count;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void resume() {
+        cancelled = false;
+    }
+
+    @Override
+    public long count(int[] cells, long limit) {
+        for (int i = 0; i < size; i++) {
+            dom[i] = topo.all;
+            val[i] = -1;
+            Arrays.fill(pastFC[i], 0);
+        }
+        trailTop = 0;
+        int level = 0;
+        for (int i = 0; i < size; i++) {
+            if (cells[i] != 0) {
+                level++;
+                Arrays.fill(conf[level], 0);
+                if ((dom[i] & (1 << (cells[i] - 1))) == 0 || !assign(level, i, cells[i] - 1)) {
+                    return 0;
+                }
+            }
+        }
+        final int base = level;
+        nodes++;
+        int x = select();
+        if (x == -1) {
+            return 1;
+        }
+        long ct = 0;
+        level = open(base + 1, x);
+        while (!cancelled) {
+            if (tried[level] == 0) {
+                // all values of x failed
+                long[] c = scratch;
+                int h;
+                if (solvedBelow[level]) {
+                    h = level - 1;
+                } else {
+                    for (int w = 0; w < words; w++) {
+                        c[w] = conf[level][w] | pastFC[x][w] | reason[level][w];
+                    }
+                    h = highest(c);
+                    learn(c);
+                    if (h < level - 1) {
+                        backjumps++;
+                    }
+                }
+                if (h <= base) {
+                    return ct;
+                }
+                for (int l = level - 1; l > h; l--) {
+                    undo(l);
+                }
+                undo(h);
+                if (!solvedBelow[level]) {
+                    for (int w = 0; w < words; w++) {
+                        conf[h][w] |= c[w];
+                    }
+                    conf[h][h >> 6] &= ~(1L << h);
+                } else {
+                    solvedBelow[h] = true;
+                }
+                level = h;
+                x = varAt[h];
+                continue;
+            }
+            int v = Integer.numberOfTrailingZeros(tried[level]);
+            tried[level] &= tried[level] - 1;
+            if (branching[level]) {
+                nodes++;
+            }
+            if (!assign(level, x, v)) {
+                continue;
+            }
+            int y = select();
+            if (y == -1) {
+                if (++ct >= limit) {
+                    return ct;
+                }
+                solvedBelow[level] = true;
+                undo(level);
+                continue;
+            }
+            level = open(level + 1, y);
+            x = y;
+        }
+        return ct;
+    }
+
+    /**
+     * Opens a level for cell x as chosen by the last select().
+     */
+    private int open(int level, int x) {
+        varAt[level] = x;
+        solvedBelow[level] = false;
+        Arrays.fill(conf[level], 0);
+        if (forcedBit != 0) {
+            tried[level] = forcedBit;
+            System.arraycopy(forcedReason, 0, reason[level], 0, words);
+        } else {
+            tried[level] = dom[x];
+            Arrays.fill(reason[level], 0);
+        }
+        branching[level] = Integer.bitCount(tried[level]) > 1;
+        return level;
+    }
+
+    /**
+     * Chooses a naked single, else a hidden single, setting forcedBit and
+     * forcedReason, else the unassigned cell with the fewest candidates.
+     *
+     * @return the cell, -1 if all cells are assigned
+     */
+    private int select() {
+        forcedBit = 0;
+        int best = -1, bestCt = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            if (val[i] == -1) {
+                int ct = Integer.bitCount(dom[i]);
+                if (ct < bestCt) {
+                    bestCt = ct;
+                    best = i;
+                    if (ct <= 1) {
+                        return best;
+                    }
+                }
+            }
+        }
+        if (best == -1) {
+            return -1;
+        }
+        for (int[] h : topo.houses) {
+            int once = 0, twice = 0, placed = 0;
+            for (int c : h) {
+                if (val[c] == -1) {
+                    twice |= once & dom[c];
+                    once |= dom[c];
+                } else {
+                    placed |= 1 << val[c];
+                }
+            }
+            int hidden = once & ~twice & ~placed;
+            if (hidden != 0) {
+                int b = hidden & -hidden;
+                int x = -1;
+                Arrays.fill(forcedReason, 0);
+                // b has no other place because of the assigned cells and
+                // the prunings of the other unassigned ones
+                for (int c : h) {
+                    if (val[c] != -1) {
+                        forcedReason[levelOf[c] >> 6] |= 1L << levelOf[c];
+                    } else if ((dom[c] & b) != 0) {
+                        x = c;
+                    } else {
+                        for (int w = 0; w < words; w++) {
+                            forcedReason[w] |= pastFC[c][w];
+                        }
+                    }
+                }
+                forcedBit = b;
+                return x;
+            }
+        }
+        return best;
+    }
+
+    static private int highest(long[] set) {
+        for (int w = set.length - 1; w >= 0; w--) {
+            if (set[w] != 0) {
+                return (w << 6) + 63 - Long.numberOfLeadingZeros(set[w]);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Assigns value v to cell x at level, pruning v from the unassigned
+     * peers. On failure the reasons are added to conf[level] and the
+     * assignment is undone.
+     */
+    private boolean assign(int level, int x, int v) {
+        varAt[level] = x;
+        val[x] = v;
+        levelOf[x] = level;
+        domBefore[level] = dom[x];
+        dom[x] = 1 << v;
+        trailStart[level] = trailTop;
+        int b = 1 << v;
+        for (int p : topo.peers[x]) {
+            if (val[p] == -1 && (dom[p] & b) != 0) {
+                dom[p] &= ~b;
+                pastFC[p][level >> 6] |= 1L << level;
+                trail[trailTop++] = p;
+                if (dom[p] == 0) {
+                    for (int w = 0; w < words; w++) {
+                        conf[level][w] |= pastFC[p][w];
+                    }
+                    conf[level][level >> 6] &= ~(1L << level);
+                    undo(level);
+                    return false;
+                }
+            }
+        }
+        // v must keep a place in every house of the pruned cells
+        for (int t = trailStart[level]; t < trailTop; t++) {
+            for (int h : topo.housesOf[trail[t]]) {
+                if (!hasPlace(topo.houses[h], v)) {
+                    for (int c : topo.houses[h]) {
+                        if (val[c] != -1) {
+                            conf[level][levelOf[c] >> 6] |= 1L << levelOf[c];
+                        } else {
+                            for (int w = 0; w < words; w++) {
+                                conf[level][w] |= pastFC[c][w];
+                            }
+                        }
+                    }
+                    conf[level][level >> 6] &= ~(1L << level);
+                    undo(level);
+                    return false;
+                }
+            }
+        }
+        int[] violated = nogoods.violated(x * symbols + v, val, symbols);
+        if (violated != null) {
+            nogoodHits++;
+            for (int lit : violated) {
+                int c = lit / symbols;
+                if (c != x) {
+                    conf[level][levelOf[c] >> 6] |= 1L << levelOf[c];
+                }
+            }
+            undo(level);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasPlace(int[] house, int v) {
+        for (int c : house) {
+            if (val[c] == -1 ? (dom[c] & (1 << v)) != 0 : val[c] == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void undo(int level) {
+        int b = 1 << val[varAt[level]];
+        long keep = ~(1L << level);
+        for (int t = trailTop - 1; t >= trailStart[level]; t--) {
+            int p = trail[t];
+            dom[p] |= b;
+            pastFC[p][level >> 6] &= keep;
+        }
+        trailTop = trailStart[level];
+        int x = varAt[level];
+        dom[x] = domBefore[level];
+        val[x] = -1;
+    }
+
+    /**
+     * Stores the assignments of the levels in c as nogood if they are few.
+     */
+    private void learn(long[] c) {
+        int n = 0;
+        for (long w : c) {
+            n += Long.bitCount(w);
+        }
+        if (n == 0 || n > MAX_NOGOOD) {
+            return;
+        }
+        int[] lits = new int[n];
+        int k = 0;
+        for (int w = 0; w < words; w++) {
+            for (long m = c[w]; m != 0; m &= m - 1) {
+                int l = (w << 6) + Long.numberOfTrailingZeros(m);
+                int cell = varAt[l];
+                lits[k++] = cell * symbols + val[cell];
+            }
+        }
+        nogoods.add(lits);
+    }
+
+    /**
+     * Nogoods indexed by their literals cell * symbols + value, evicting the
+     * least active half when full.
+     */
+    static private class NogoodStore {
+
+        final int capacity;
+        final List<List<int[]>> byLiteral;
+        final List<int[]> all = new ArrayList<>();
+        final List<double[]> activity = new ArrayList<>();
+        final Set<Long> keys = new HashSet<>();
+        double inc = 1;
+        int count = 0;
+
+        NogoodStore(int cap, int literals) {
+            capacity = cap;
+            byLiteral = new ArrayList<>(literals);
+            for (int i = 0; i < literals; i++) {
+                byLiteral.add(new ArrayList<int[]>(0));
+            }
+        }
+
+        /**
+         * @return a hash of the sorted literals from index from on, a
+         * collision only keeps a nogood from being stored
+         */
+        static long key(int[] lits, int from) {
+            long key = 0;
+            for (int k = from; k < lits.length; k++) {
+                key = (key + lits[k] + 1) * 0x9E3779B97F4A7C15L;
+            }
+            return key;
+        }
+
+        /**
+         * Nogoods are kept as {activity index, literals...}.
+         */
+        void add(int[] lits) {
+            Arrays.sort(lits);
+            long key = key(lits, 0);
+            if (!keys.add(key)) {
+                return;
+            }
+            if (count == capacity) {
+                evict();
+            }
+            int[] ng = new int[lits.length + 1];
+            ng[0] = activity.size();
+            System.arraycopy(lits, 0, ng, 1, lits.length);
+            activity.add(new double[]{inc});
+            all.add(ng);
+            for (int l : lits) {
+                byLiteral.get(l).add(ng);
+            }
+            count++;
+            inc *= 1.05;
+            if (inc > 1e100) {
+                for (double[] a : activity) {
+                    a[0] *= 1e-100;
+                }
+                inc *= 1e-100;
+            }
+        }
+
+        /**
+         * @return the literals of a nogood containing lit whose other
+         * literals all hold, null if there is none
+         */
+        int[] violated(int lit, int[] val, int symbols) {
+            for (int[] ng : byLiteral.get(lit)) {
+                boolean holds = true;
+                for (int k = 1; k < ng.length && holds; k++) {
+                    int l = ng[k];
+                    holds = l == lit || val[l / symbols] == l % symbols;
+                }
+                if (holds) {
+                    activity.get(ng[0])[0] += inc;
+                    return Arrays.copyOfRange(ng, 1, ng.length);
+                }
+            }
+            return null;
+        }
+
+        private void evict() {
+            List<int[]> sorted = new ArrayList<>(all);
+            final List<double[]> act = activity;
+            Collections.sort(sorted, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return Double.compare(act.get(b[0])[0], act.get(a[0])[0]);
+                }
+            });
+            List<int[]> kept = sorted.subList(0, capacity / 2);
+            List<double[]> newActivity = new ArrayList<>();
+            all.clear();
+            keys.clear();
+            for (List<int[]> l : byLiteral) {
+                l.clear();
+            }
+            for (int[] ng : new ArrayList<>(kept)) {
+                double[] a = act.get(ng[0]);
+                ng[0] = newActivity.size();
+                newActivity.add(a);
+                all.add(ng);
+                for (int k = 1; k < ng.length; k++) {
+                    byLiteral.get(ng[k]).add(ng);
+                }
+                keys.add(key(ng, 1));
+            }
+            activity.clear();
+            activity.addAll(newActivity);
+            count = all.size();
+        }
+    }
+}
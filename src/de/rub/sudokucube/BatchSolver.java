@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Propagates naked and hidden singles on up to 64 boards at once. The
+ * layout is bit-sliced: word cell * symbols + v holds in bit j whether value
+ * v + 1 is still a candidate of cell on board j, so one long operation
+ * updates the same cell of every board. Boards that singles neither solve
+ * nor refute are branched in the lanes for a few levels, on the cell with
+ * the fewest candidates, and only children still open after that are
+ * finished by a SudokuSolver from their candidates. One instance must only
+ * be used by one thread at a time.
+ *
+ * @author Sora Steenvoort
+ */
+public class BatchSolver {
+
+    static final int LANES = 64;
+    static final int SPLIT_LEVELS = 3;
+    static final int ITEMS = 2 * LANES; // open children kept per level
+
+    final SudokuTopology topo;
+    private final int symbols;
+    private final long[] cand;
+    private final long[] done; // lanes whose single was already removed from the extra peers
+    private final long[] single; // lanes in which a cell has one candidate
+    private final int[][] extraPeers;
+    private final int[] laneCand;
+    private final int[][][] items;   // candidates of open boards and children, two levels
+    private final int[][] itemBoard; // open board of every item
+    private final int[] openIndex;   // index of every open board in the input
+    private final long[] boardCt;    // solutions of every open board found so far
+    private final boolean[] boardHanded;
+    private final int[] childOf;     // open board of each lane when splitting
+    private final SudokuSolver scalar;
+    private long solvedLanes, deadLanes;
+    private long boards, handedOff;
+    // visitors of the scalar solver, kept to avoid allocations
+    private int[] firstOut;
+    private long counterCt, counterLimit;
+    // outputs of the running solveInto() or countInto()
+    private int[][] solutionsOut;
+    private boolean[] okOut;
+    private long[] countsOut;
+    private long countLimit;
+    private final SudokuSolver.Visitor first = new SudokuSolver.Visitor() {
+        @Override
+        public boolean visit(int[] cells) {
+            System.arraycopy(cells, 0, firstOut, 0, cells.length);
+            return false;
+        }
+    };
+    private final SudokuSolver.Visitor counter = new SudokuSolver.Visitor() {
+        @Override
+        public boolean visit(int[] cells) {
+            return ++counterCt < counterLimit;
+        }
+    };
+
+    public BatchSolver(SudokuTopology topology) {
+        topo = topology;
+        symbols = topo.symbols;
+        cand = new long[topo.size * symbols];
+        done = new long[topo.size * symbols];
+        single = new long[topo.size];
+        extraPeers = new int[topo.size][];
+        for (int i = 0; i < topo.size; i++) {
+            boolean[] mate = new boolean[topo.size];
+            for (int h : topo.housesOf[i]) {
+                for (int c : topo.houses[h]) {
+                    mate[c] = true;
+                }
+            }
+            int ct = 0;
+            for (int p : topo.peers[i]) {
+                if (!mate[p]) {
+                    ct++;
+                }
+            }
+            extraPeers[i] = new int[ct];
+            ct = 0;
+            for (int p : topo.peers[i]) {
+                if (!mate[p]) {
+                    extraPeers[i][ct++] = p;
+                }
+            }
+        }
+        laneCand = new int[topo.size];
+        items = new int[2][ITEMS][topo.size];
+        itemBoard = new int[2][ITEMS];
+        openIndex = new int[LANES];
+        boardCt = new long[LANES];
+        boardHanded = new boolean[LANES];
+        childOf = new int[LANES];
+        scalar = new SudokuSolver(topo);
+    }
+
+    /**
+     * @return the scalar solver taking over the boards that need branching
+     */
+    public SudokuSolver getScalar() {
+        return scalar;
+    }
+
+    /**
+     * @return boards processed so far
+     */
+    public long getBoards() {
+        return boards;
+    }
+
+    /**
+     * @return boards of which some child was passed on to the scalar solver
+     * so far
+     */
+    public long getHandedOff() {
+        return handedOff;
+    }
+
+    /**
+     * Writes a solution of puzzles[k] into solutions[k] for every k.
+     *
+     * @return which puzzles have a solution
+     */
+    public boolean[] solve(int[][] puzzles, int[][] solutions) {
+        boolean[] ok = new boolean[puzzles.length];
+        solveInto(puzzles, 0, puzzles.length, solutions, ok);
+        return ok;
+    }
+
+    /**
+     * Counts the solutions of every puzzle up to limit.
+     */
+    public long[] count(int[][] puzzles, long limit) {
+        long[] counts = new long[puzzles.length];
+        countInto(puzzles, 0, puzzles.length, limit, counts);
+        return counts;
+    }
+
+    /**
+     * Writes a solution of puzzles[k] into solutions[k] and whether there is
+     * one into ok[k], for k from from to from + n - 1. Allocates nothing.
+     */
+    public void solveInto(int[][] puzzles, int from, int n, int[][] solutions, boolean[] ok) {
+        solutionsOut = solutions;
+        okOut = ok;
+        countsOut = null;
+        run(puzzles, from, n);
+    }
+
+    /**
+     * Writes the number of solutions of puzzles[k], up to limit, into
+     * counts[k] for k from from to from + n - 1. Allocates nothing.
+     */
+    public void countInto(int[][] puzzles, int from, int n, long limit, long[] counts) {
+        solutionsOut = null;
+        okOut = null;
+        countsOut = counts;
+        countLimit = limit;
+        run(puzzles, from, n);
+    }
+
+    private void run(int[][] puzzles, int from, int n) {
+        for (int end = from + n; from < end; from += LANES) {
+            int lanes = Math.min(LANES, end - from);
+            boards += lanes;
+            clear();
+            for (int j = 0; j < lanes; j++) {
+                loadPuzzle(j, puzzles[from + j]);
+            }
+            propagate(lanes);
+            int open = 0;
+            for (int j = 0; j < lanes; j++) {
+                long bit = 1L << j;
+                if ((deadLanes & bit) != 0) {
+                    result(from + j, 0, j);
+                } else if ((solvedLanes & bit) != 0) {
+                    result(from + j, 1, j);
+                } else {
+                    extractCandidates(j, items[0][open]);
+                    itemBoard[0][open] = open;
+                    openIndex[open] = from + j;
+                    boardCt[open] = 0;
+                    boardHanded[open] = false;
+                    open++;
+                }
+            }
+            split(open);
+        }
+    }
+
+    /**
+     * Searches the n open boards in the lanes, level by level: every open
+     * item is branched on its cell with the fewest candidates, one lane per
+     * candidate, and the children are propagated. Children singles leave
+     * open become the items of the next level, up to SPLIT_LEVELS levels or
+     * ITEMS items, the others are finished by the scalar solver.
+     */
+    private void split(int n) {
+        int cur = 0, items0 = n;
+        for (int level = 0; level < SPLIT_LEVELS && items0 > 0; level++) {
+            int next = 0;
+            boolean last = level == SPLIT_LEVELS - 1;
+            int[][] from = items[cur], to = items[1 - cur];
+            int[] fromBoard = itemBoard[cur], toBoard = itemBoard[1 - cur];
+            for (int b = 0; b < items0;) {
+                clear();
+                int lanes = 0;
+                for (; b < items0; b++) {
+                    if (finished(fromBoard[b])) {
+                        continue;
+                    }
+                    int[] c = from[b];
+                    int cell = scalar.selectCell(c);
+                    if (lanes + Integer.bitCount(c[cell]) > LANES) {
+                        break;
+                    }
+                    for (int m = c[cell]; m != 0; m &= m - 1) {
+                        loadCandidates(lanes, c, cell, m & -m);
+                        childOf[lanes++] = fromBoard[b];
+                    }
+                }
+                propagate(lanes);
+                for (int j = 0; j < lanes; j++) {
+                    int board = childOf[j];
+                    long bit = 1L << j;
+                    if (finished(board) || (deadLanes & bit) != 0) {
+                        continue;
+                    }
+                    if ((solvedLanes & bit) != 0) {
+                        if (boardCt[board] == 0 && countsOut == null) {
+                            extract(j, solutionsOut[openIndex[board]]);
+                        }
+                        boardCt[board]++;
+                    } else if (!last && next < ITEMS) {
+                        extractCandidates(j, to[next]);
+                        toBoard[next++] = board;
+                    } else {
+                        extractCandidates(j, laneCand);
+                        handOff(board, laneCand);
+                    }
+                }
+            }
+            cur = 1 - cur;
+            items0 = next;
+        }
+        for (int board = 0; board < n; board++) {
+            if (boardHanded[board]) {
+                handedOff++;
+            }
+            if (countsOut == null) {
+                okOut[openIndex[board]] = boardCt[board] > 0;
+            } else {
+                countsOut[openIndex[board]] = Math.min(boardCt[board], countLimit);
+            }
+        }
+    }
+
+    /**
+     * @return whether the solution or count of board is known already
+     */
+    private boolean finished(int board) {
+        return countsOut == null ? boardCt[board] > 0 : boardCt[board] >= countLimit;
+    }
+
+    /**
+     * Adds the solutions of the candidates c of a child of board by the
+     * scalar solver.
+     */
+    private void handOff(int board, int[] c) {
+        boardHanded[board] = true;
+        if (countsOut == null) {
+            firstOut = solutionsOut[openIndex[board]];
+            boardCt[board] += scalar.enumerate(c, first);
+        } else {
+            counterCt = 0;
+            counterLimit = countLimit - boardCt[board];
+            scalar.enumerate(c, counter);
+            boardCt[board] += counterCt;
+        }
+    }
+
+    /**
+     * Stores the outcome of a board decided by the first round of singles,
+     * ct being 0 or 1.
+     */
+    private void result(int k, int ct, int lane) {
+        if (countsOut == null) {
+            okOut[k] = ct > 0;
+            if (ct > 0) {
+                extract(lane, solutionsOut[k]);
+            }
+        } else {
+            countsOut[k] = Math.min(ct, countLimit);
+        }
+    }
+
+    private void clear() {
+        for (int k = 0; k < cand.length; k++) {
+            cand[k] = 0;
+            done[k] = 0;
+        }
+    }
+
+    private void loadPuzzle(int lane, int[] p) {
+        long bit = 1L << lane;
+        for (int i = 0; i < topo.size; i++) {
+            if (p[i] == 0) {
+                for (int v = 0; v < symbols; v++) {
+                    cand[i * symbols + v] |= bit;
+                }
+            } else {
+                cand[i * symbols + p[i] - 1] |= bit;
+            }
+        }
+    }
+
+    /**
+     * Loads candidate masks into lane, with cell restricted to bit.
+     */
+    private void loadCandidates(int lane, int[] c, int cell, int bit) {
+        long laneBit = 1L << lane;
+        for (int i = 0; i < topo.size; i++) {
+            for (int m = i == cell ? bit : c[i]; m != 0; m &= m - 1) {
+                cand[i * symbols + Integer.numberOfTrailingZeros(m)] |= laneBit;
+            }
+        }
+    }
+
+    /**
+     * Propagates singles in the first n lanes until nothing changes, setting
+     * solvedLanes and deadLanes. Every round computes the lanes in which
+     * each cell is single, then passes once over every value of every house,
+     * removing the value from the cells where another cell of the house is
+     * fixed to it and fixing the cell that is the only place left for it.
+     */
+    private void propagate(int n) {
+        int size = topo.size;
+        int[][] houses = topo.houses;
+        long active = n == LANES ? -1L : (1L << n) - 1;
+        long dead = 0;
+        boolean changed = true;
+        while (changed && dead != active) {
+            changed = false;
+            for (int i = 0; i < size; i++) {
+                int base = i * symbols;
+                long once = 0, twice = 0;
+                for (int v = 0; v < symbols; v++) {
+                    long x = cand[base + v];
+                    twice |= once & x;
+                    once |= x;
+                }
+                dead |= active & ~once;
+                single[i] = once & ~twice;
+                // peers sharing no house with i, none in the shipped variants
+                for (int v = 0; v < symbols && extraPeers[i].length > 0; v++) {
+                    long s = cand[base + v] & single[i] & ~done[base + v];
+                    if (s == 0) {
+                        continue;
+                    }
+                    done[base + v] |= s;
+                    for (int p : extraPeers[i]) {
+                        long w = cand[p * symbols + v];
+                        if ((w & s) != 0) {
+                            cand[p * symbols + v] = w & ~s;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            for (int[] h : houses) {
+                for (int v = 0; v < symbols; v++) {
+                    long once = 0, twice = 0, fixedOnce = 0, fixedTwice = 0;
+                    for (int c : h) {
+                        long x = cand[c * symbols + v];
+                        long f = x & single[c];
+                        fixedTwice |= fixedOnce & f;
+                        fixedOnce |= f;
+                        twice |= once & x;
+                        once |= x;
+                    }
+                    dead |= active & ~once;
+                    long unique = once & ~twice;
+                    if (fixedOnce == 0 && unique == 0) {
+                        continue;
+                    }
+                    for (int c : h) {
+                        int k = c * symbols + v;
+                        long x = cand[k];
+                        long f = x & single[c];
+                        long gone = x & ((fixedOnce & ~f) | fixedTwice);
+                        if (gone != 0) {
+                            cand[k] = x &= ~gone;
+                            changed = true;
+                        }
+                        long u = unique & x & ~single[c];
+                        if (u != 0) {
+                            for (int w = c * symbols; w < c * symbols + symbols; w++) {
+                                if (w != k) {
+                                    cand[w] &= ~u;
+                                }
+                            }
+                            single[c] |= u;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+        long solved = active & ~dead;
+        for (int i = 0; i < size && solved != 0; i++) {
+            long once = 0, twice = 0;
+            for (int v = 0; v < symbols; v++) {
+                long x = cand[i * symbols + v];
+                twice |= once & x;
+                once |= x;
+            }
+            solved &= once & ~twice;
+        }
+        deadLanes = dead;
+        solvedLanes = solved;
+    }
+
+    private void extract(int lane, int[] out) {
+        for (int i = 0; i < topo.size; i++) {
+            for (int v = 0; v < symbols; v++) {
+                if ((cand[i * symbols + v] >>> lane & 1) != 0) {
+                    out[i] = v + 1;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void extractCandidates(int lane, int[] out) {
+        for (int i = 0; i < topo.size; i++) {
+            int m = 0;
+            for (int v = 0; v < symbols; v++) {
+                m |= (int) (cand[i * symbols + v] >>> lane & 1) << v;
+            }
+            out[i] = m;
+        }
+    }
+
+    /**
+     * Compares boards per second of BatchSolver, SudokuSolver and
+     * SudokuToolkit.solve on random images of generated minimal puzzles.
+     *
+     * @param args number of boards per variant (default 4096)
+     */
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        Random rnd = new Random(n);
+        for (String cls : SudokuBench.CLASSES) {
+            SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+            SudokuSymmetry sym = SudokuSymmetry.of(topo.cls);
+            List<int[]> seeds = SudokuBench.puzzles(cls, 32);
+            int[][] puzzles = new int[n][];
+            for (int k = 0; k < n; k++) {
+                puzzles[k] = sym.apply(seeds.get(k % seeds.size()), sym.randomElement(rnd),
+                        sym.randomRelabeling(rnd), new int[topo.size]);
+            }
+            int[][] out = new int[n][topo.size];
+
+            // alternating rounds, so neither solver profits from the JIT
+            // warming up on the other, best round of each
+            BatchSolver batch = new BatchSolver(topo);
+            SudokuSolver solver = new SudokuSolver(topo);
+            double tBatch = Double.MAX_VALUE, tScalar = Double.MAX_VALUE;
+            long boards = 0, handedOff = 0;
+            for (int r = 0; r < 8; r++) {
+                long before = batch.getHandedOff();
+                long t0 = System.nanoTime();
+                batch.solve(puzzles, out);
+                tBatch = Math.min(tBatch, (System.nanoTime() - t0) / 1e9);
+                boards += n;
+                handedOff += batch.getHandedOff() - before;
+                t0 = System.nanoTime();
+                for (int[] p : puzzles) {
+                    solver.solve(p, out[0]);
+                }
+                tScalar = Math.min(tScalar, (System.nanoTime() - t0) / 1e9);
+            }
+
+            int m = Math.min(n, 256); // the toolkit is too slow for all boards
+            List<Sudoku> sudokus = new ArrayList<>();
+            for (int k = 0; k < m; k++) {
+                sudokus.add(topo.decode(puzzles[k]));
+            }
+            long t0 = System.nanoTime();
+            for (Sudoku s : sudokus) {
+                SudokuToolkit.solve(s);
+            }
+            double tToolkit = (System.nanoTime() - t0) / 1e9;
+
+            System.out.printf("%-16s batch %10.0f boards/s (%.1f%% handed off), SudokuSolver %10.0f boards/s,"
+                    + " SudokuToolkit.solve %8.0f boards/s%n", topo.cls.getSimpleName(), n / tBatch,
+                    100.0 * handedOff / boards, n / tScalar, m / tToolkit);
+        }
+    }
+}
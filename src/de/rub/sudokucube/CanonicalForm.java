@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.Arrays;
+
+/**
+ * Lexicographically minimal representative of a board under the symmetry
+ * group and palette relabelings, together with the transformation that takes
+ * the original board to it. Two boards are equivalent iff their canonical
+ * forms are equal.
+ *
+ * @author Sora Steenvoort
+ */
+public class CanonicalForm {
+
+    final SudokuTopology topo;
+    final int[] cells;   // canonical cells, 0 for empty
+    final int[] perm;    // cell i of the original board goes to perm[i]
+    final int[] relabel; // value v of the original board becomes relabel[v]
+    final long[] key;    // 4 bits per cell, empty sorting after every value
+
+    CanonicalForm(SudokuTopology topology, int[] canonical, int[] permutation, int[] relabeling) {
+        topo = topology;
+        cells = canonical;
+        perm = permutation;
+        relabel = relabeling;
+        key = new long[(cells.length + 15) / 16];
+        for (int i = 0; i < cells.length; i++) {
+            long v = cells[i] == 0 ? topo.symbols + 1 : cells[i];
+            key[i >> 4] |= v << ((i & 15) * 4);
+        }
+    }
+
+    public Class<? extends Sudoku> getSudokuClass() {
+        return topo.cls;
+    }
+
+    public int[] getCells() {
+        return cells.clone();
+    }
+
+    public long[] getKey() {
+        return key.clone();
+    }
+
+    /**
+     * @return a 64 bit hash of the class and the key
+     */
+    public long hash64() {
+        long h = topo.cls.getName().hashCode() * 0x9E3779B97F4A7C15L;
+        for (long k : key) {
+            h ^= k;
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 31;
+        }
+        return h;
+    }
+
+    /**
+     * Maps cells of the original board (e.g. a solution) to the canonical
+     * board.
+     */
+    public int[] toCanonical(int[] original, int[] out) {
+        for (int i = 0; i < original.length; i++) {
+            out[perm[i]] = relabel[original[i]];
+        }
+        return out;
+    }
+
+    /**
+     * Maps cells of the canonical board back to the original board.
+     */
+    public int[] toOriginal(int[] canonical, int[] out) {
+        int[] unlabel = new int[relabel.length];
+        for (int v = 0; v < relabel.length; v++) {
+            unlabel[relabel[v]] = v;
+        }
+        for (int i = 0; i < out.length; i++) {
+            out[i] = unlabel[canonical[perm[i]]];
+        }
+        return out;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CanonicalForm)) {
+            return false;
+        }
+        CanonicalForm c = (CanonicalForm) o;
+        return topo == c.topo && Arrays.equals(key, c.key);
+    }
+
+    @Override
+    public int hashCode() {
+        long h = hash64();
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(topo.cls.getSimpleName()).append(':');
+        for (int c : cells) {
+            sb.append(c == 0 ? topo.empty : topo.palette[c - 1]);
+        }
+        return sb.toString();
+    }
+}
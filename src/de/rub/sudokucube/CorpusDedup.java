@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Drops puzzles equivalent to an earlier one of a collection, i.e. equal up
+ * to the symmetry group of the variant and relabeling. Each puzzle is
+ * reduced to its canonical form (SudokuSymmetry), and the forms seen are
+ * kept off the heap, either exactly in an open addressing set of their keys
+ * or, in a fixed size, as 64 bit hashes in a Bloom filter that may drop a
+ * few unique puzzles. Canonicalizing is the expensive part and runs on a
+ * thread pool; as in CorpusSolver a ring of window jobs keeps the input
+ * order, so the first of equivalent puzzles is the one kept. Archive
+ * records are compared by their given cells only. Standard puzzles take
+ * about 0.1 ms each (StandardCanonicalizer), 9000 to 12000 per second on
+ * one core, so ten million take some 15 to 20 minutes per core.
+ *
+ * @author Sora Steenvoort
+ */
+public class CorpusDedup implements Closeable {
+
+    static final int DEFAULT_WINDOW = 1024;
+
+    interface Seen {
+
+        /**
+         * Adds the canonical form f with hash h = f.hash64().
+         *
+         * @return false if f was (possibly, for a Bloom filter) added before
+         */
+        boolean add(long h, CanonicalForm f);
+
+        /**
+         * @return the bytes taken off the heap
+         */
+        long bytes();
+    }
+
+    /**
+     * Exact set of canonical forms. The table holds the hash and a reference
+     * to the stored form of every entry, probed linearly and doubled when it
+     * is two thirds full; the forms are appended to chunks of CHUNK longs,
+     * each as a header of variant and key length followed by the key, and
+     * compared when the hashes match. Both are direct buffers.
+     */
+    static class KeySet implements Seen {
+
+        static final int CHUNK = 1 << 20;
+
+        private LongBuffer table; // hash and 1 + offset of the form, 0 if empty
+        private int mask;
+        private long size = 0;
+        private final List<LongBuffer> store = new ArrayList<>();
+        private long stored = 0; // longs of the store in use
+
+        KeySet(long expected) {
+            allocate(Long.highestOneBit(Math.max(16, expected * 3 / 2)) << 1);
+        }
+
+        private void allocate(long capacity) {
+            if (capacity * 16 > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Hash set too large");
+            }
+            table = ByteBuffer.allocateDirect((int) capacity * 16).order(ByteOrder.nativeOrder()).asLongBuffer();
+            mask = (int) capacity - 1;
+        }
+
+        static private int spread(long h) {
+            h *= 0x9e3779b97f4a7c15L;
+            return (int) (h ^ h >>> 32);
+        }
+
+        @Override
+        public boolean add(long h, CanonicalForm f) {
+            long header = (long) SudokuArchive.variantId(f.topo.cls) << 32 | f.key.length;
+            int k = spread(h) & mask;
+            for (;; k = k + 1 & mask) {
+                long ref = table.get(2 * k + 1);
+                if (ref == 0) {
+                    break;
+                }
+                if (table.get(2 * k) == h && equal(ref - 1, header, f.key)) {
+                    return false;
+                }
+            }
+            if (size + 1 > (mask + 1L) * 2 / 3) {
+                LongBuffer old = table;
+                allocate(2 * (mask + 1L));
+                for (int i = 0; i < old.capacity(); i += 2) {
+                    if (old.get(i + 1) != 0) {
+                        insert(old.get(i), old.get(i + 1));
+                    }
+                }
+            }
+            insert(h, 1 + append(header, f.key));
+            size++;
+            return true;
+        }
+
+        private void insert(long h, long ref) {
+            int k = spread(h) & mask;
+            while (table.get(2 * k + 1) != 0) {
+                k = k + 1 & mask;
+            }
+            table.put(2 * k, h);
+            table.put(2 * k + 1, ref);
+        }
+
+        private boolean equal(long offset, long header, long[] key) {
+            LongBuffer chunk = store.get((int) (offset / CHUNK));
+            int p = (int) (offset % CHUNK);
+            if (chunk.get(p) != header) {
+                return false;
+            }
+            for (int w = 0; w < key.length; w++) {
+                if (chunk.get(p + 1 + w) != key[w]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the offset of the form in the store, which never spans
+         * two chunks
+         */
+        private long append(long header, long[] key) {
+            if (stored % CHUNK + 1 + key.length > CHUNK || stored == (long) store.size() * CHUNK) {
+                stored = (long) store.size() * CHUNK;
+                store.add(ByteBuffer.allocateDirect(CHUNK * 8).order(ByteOrder.nativeOrder()).asLongBuffer());
+            }
+            long offset = stored;
+            LongBuffer chunk = store.get(store.size() - 1);
+            int p = (int) (offset % CHUNK);
+            chunk.put(p, header);
+            for (int w = 0; w < key.length; w++) {
+                chunk.put(p + 1 + w, key[w]);
+            }
+            stored += 1 + key.length;
+            return offset;
+        }
+
+        @Override
+        public long bytes() {
+            return (mask + 1L) * 16 + (long) store.size() * CHUNK * 8;
+        }
+    }
+
+    /**
+     * Bloom filter in a direct buffer, the probes derived from the two
+     * halves of the 64 bit hash.
+     */
+    static class BloomFilter implements Seen {
+
+        private final LongBuffer bits;
+        private final long mask;
+        private final int probes;
+
+        /**
+         * Sized for expected entries at the given false positive rate.
+         */
+        BloomFilter(long expected, double falsePositives) {
+            double m = -expected * Math.log(falsePositives) / (Math.log(2) * Math.log(2));
+            long words = Long.highestOneBit(Math.max(1, (long) Math.ceil(m / 64)) * 2 - 1);
+            if (words * 8 > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Bloom filter too large");
+            }
+            bits = ByteBuffer.allocateDirect((int) words * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+            mask = words * 64 - 1;
+            probes = Math.max(1, (int) Math.round(words * 64.0 / expected * Math.log(2)));
+        }
+
+        @Override
+        public boolean add(long h, CanonicalForm f) {
+            long a = h * 0x9e3779b97f4a7c15L, b = (h >>> 32 | h << 32) * 0xc2b2ae3d27d4eb4fL | 1;
+            boolean fresh = false;
+            for (int k = 0; k < probes; k++, a += b) {
+                long bit = a & mask;
+                int w = (int) (bit >>> 6);
+                long x = bits.get(w), m = 1L << bit;
+                if ((x & m) == 0) {
+                    bits.put(w, x | m);
+                    fresh = true;
+                }
+            }
+            return fresh;
+        }
+
+        @Override
+        public long bytes() {
+            return (long) bits.capacity() * 8;
+        }
+    }
+
+    static private class Job {
+
+        long line;
+        SudokuTopology topo;
+        final int[] cells = new int[SudokuArchive.maxSize()];
+        final boolean[] given = new boolean[cells.length];
+        final int[] puzzle = new int[cells.length]; // the given cells only
+        CanonicalForm form;
+        long hash;
+        String error;
+        Future<?> future;
+    }
+
+    private final Seen seen;
+    private final ExecutorService pool;
+    private final Job[] ring;
+    private long submitted = 0, written = 0;
+    private long kept = 0, duplicates = 0, invalid = 0;
+    private SudokuLines.Writer lines;
+    private SudokuArchive.Writer archive;
+    private String unit; // "Line" or "Record", for errors
+
+    /**
+     * @param seen where the hashes of the puzzles kept go
+     * @param threads worker threads canonicalizing
+     * @param window puzzles in flight at most
+     */
+    public CorpusDedup(Seen seen, int threads, int window) {
+        this.seen = seen;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dedup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ring = new Job[window];
+        for (int k = 0; k < window; k++) {
+            ring[k] = new Job();
+        }
+    }
+
+    private Job nextSlot() throws IOException {
+        Job j = ring[(int) (submitted % ring.length)];
+        if (submitted - written == ring.length) {
+            writeOldest();
+        }
+        j.error = null;
+        j.form = null;
+        j.future = null;
+        return j;
+    }
+
+    /**
+     * Canonicalizes puzzle, j.cells or, for archive records, j.puzzle.
+     */
+    private void submit(final Job j, final int[] puzzle) {
+        submitted++;
+        j.future = pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                j.form = SudokuSymmetry.of(j.topo.cls).canonicalize(puzzle);
+                j.hash = j.form.hash64();
+            }
+        });
+    }
+
+    private void writeOldest() throws IOException {
+        Job j = ring[(int) (written % ring.length)];
+        written++;
+        if (j.future != null) {
+            try {
+                j.future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                j.error = unit + " " + j.line + ": " + e;
+            }
+        }
+        if (j.error != null) {
+            invalid++;
+            System.err.println(j.error);
+            return;
+        }
+        if (!seen.add(j.hash, j.form)) {
+            duplicates++;
+            return;
+        }
+        kept++;
+        if (lines != null) {
+            lines.write(j.topo, j.cells, null);
+        } else if (archive != null) {
+            archive.write(j.topo, j.cells, j.given);
+        }
+    }
+
+    /**
+     * Reads the puzzles of is, a file of puzzle lines of topo or a binary
+     * archive, and writes those not equivalent to an earlier one to os in
+     * the same format, unless os is null. Malformed inputs are reported on
+     * System.err in input order.
+     */
+    public void run(InputStream is, SudokuTopology topo, OutputStream os) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(is, 1 << 16);
+        if (SudokuArchive.peekMagic(bis) == SudokuArchive.MAGIC) {
+            unit = "Record";
+            archive = os == null ? null : new SudokuArchive.Writer(os);
+            SudokuArchive.Reader r = new SudokuArchive.Reader(bis);
+            for (long record = 1;; record++) {
+                Job j = nextSlot();
+                try {
+                    j.topo = r.next(j.cells, j.given);
+                } catch (IOException e) {
+                    // the rest of the archive cannot be trusted
+                    submitted++;
+                    j.line = record;
+                    j.error = unit + " " + record + ": " + e.getMessage();
+                    break;
+                }
+                if (j.topo == null) {
+                    break;
+                }
+                j.line = record;
+                // copies differing in their filled in cells are one puzzle
+                for (int i = 0; i < j.topo.size; i++) {
+                    j.puzzle[i] = j.given[i] ? j.cells[i] : 0;
+                }
+                submit(j, j.puzzle);
+            }
+        } else {
+            unit = "Line";
+            lines = os == null ? null : new SudokuLines.Writer(os, topo);
+            SudokuLines.Reader r = new SudokuLines.Reader(bis, topo);
+            while (true) {
+                Job j = nextSlot();
+                try {
+                    if (!r.next(j.cells)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    submitted++;
+                    j.line = r.getLine();
+                    j.error = e.getMessage();
+                    continue;
+                }
+                j.topo = topo;
+                j.line = r.getLine();
+                submit(j, j.cells);
+            }
+        }
+        while (written < submitted) {
+            writeOldest();
+        }
+        if (lines != null) {
+            lines.flush();
+        }
+        if (archive != null) {
+            archive.flush();
+        }
+    }
+
+    /**
+     * @return the puzzles kept so far
+     */
+    public long getKept() {
+        return kept;
+    }
+
+    /**
+     * @return the puzzles dropped as equivalent to an earlier one so far
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the malformed inputs so far
+     */
+    public long getInvalid() {
+        return invalid;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * @param args input file, then optionally -o output file, -n expected
+     * number of puzzles (default 1000000), -bloom false positive rate to use
+     * a Bloom filter sized for n instead of the exact set, -t threads
+     * (default all processors), -w window, -c Sudoku class of line files
+     * (default StandardSudoku). The exact set takes about 80 to 110 bytes per
+     * standard puzzle kept, which -XX:MaxDirectMemorySize must allow for.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: CorpusDedup <puzzles> [-o <unique>] [-n <expected>] [-bloom <rate>]"
+                    + " [-t <threads>] [-w <window>] [-c <class>]");
+            System.exit(1);
+        }
+        String outFile = null, cls = "de.rub.sudokucube.StandardSudoku";
+        long expected = 1000000;
+        double bloom = 0;
+        int threads = Runtime.getRuntime().availableProcessors(), window = DEFAULT_WINDOW;
+        for (int k = 1; k < args.length; k++) {
+            switch (args[k]) {
+                case "-o":
+                    outFile = args[++k];
+                    break;
+                case "-n":
+                    expected = Long.parseLong(args[++k]);
+                    break;
+                case "-bloom":
+                    bloom = Double.parseDouble(args[++k]);
+                    break;
+                case "-t":
+                    threads = Integer.parseInt(args[++k]);
+                    break;
+                case "-w":
+                    window = Integer.parseInt(args[++k]);
+                    break;
+                case "-c":
+                    cls = args[++k];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[k]);
+                    System.exit(1);
+            }
+        }
+        SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+        Seen seen = bloom > 0 ? new BloomFilter(expected, bloom) : new KeySet(expected);
+        long t0 = System.nanoTime();
+        try (CorpusDedup dd = new CorpusDedup(seen, threads, window);
+                InputStream is = new FileInputStream(args[0]);
+                OutputStream os = outFile == null ? null : new FileOutputStream(outFile)) {
+            dd.run(is, topo, os);
+            double secs = (System.nanoTime() - t0) / 1e9;
+            long total = dd.getKept() + dd.getDuplicates();
+            System.out.printf("%d puzzles: %d kept, %d duplicates, %d invalid%n", total, dd.getKept(),
+                    dd.getDuplicates(), dd.getInvalid());
+            System.out.printf("%d threads: %.3f s, %.0f puzzles/s, %s of %.1f MB off the heap, %.1f MB heap used%n",
+                    threads, secs, total / secs, bloom > 0 ? "Bloom filter" : "hash set", seen.bytes() / 1e6,
+                    (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1e6);
+        }
+    }
+}
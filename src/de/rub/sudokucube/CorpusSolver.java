@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Solves or checks every puzzle of a collection on a thread pool, as done to
+ * validate puzzle books before printing. Input is a file of puzzle lines
+ * (SudokuLines) or a binary archive (SudokuArchive). Results are written in
+ * input order: puzzles are put into a ring of window jobs, and the reading
+ * thread writes the oldest job once it is done before it reuses its slot,
+ * so at most window puzzles are in flight and memory stays bounded. Every
+ * worker thread has its own SolverSession per variant. Malformed inputs
+ * become comment lines of the output instead of stopping the run.
+ *
+ * @author Sora Steenvoort
+ */
+public class CorpusSolver implements Closeable {
+
+    static final int INVALID = -1, NONE = 0, UNIQUE = 1, MULTIPLE = 2;
+    static final int DEFAULT_WINDOW = 1024;
+    static final int SLOWEST = 10;
+
+    static private class Job {
+
+        long line;
+        SudokuTopology topo;
+        final int[] cells = new int[SudokuArchive.maxSize()];
+        final int[] solution = new int[cells.length];
+        int status;
+        long nanos;
+        String error;
+        Future<?> future;
+    }
+
+    /**
+     * Latencies in buckets of 1/16 of a power of two, so percentiles are
+     * within about 6% in constant space.
+     */
+    static class Histogram {
+
+        private final long[] counts = new long[61 * 16];
+        private long n = 0, max = 0;
+
+        void add(long v) {
+            counts[bucket(v)]++;
+            n++;
+            max = Math.max(max, v);
+        }
+
+        static private int bucket(long v) {
+            if (v < 16) {
+                return (int) v;
+            }
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            return (e - 3) * 16 + (int) (v >>> (e - 4) & 15);
+        }
+
+        static private long upper(int b) {
+            if (b < 16) {
+                return b;
+            }
+            int e = b / 16 + 3;
+            return ((16L | b % 16) + 1 << e - 4) - 1;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the q-quantile
+         */
+        long percentile(double q) {
+            long rank = (long) Math.ceil(q * n), seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(upper(b), max);
+                }
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+    }
+
+    private final boolean check;
+    private final ExecutorService pool;
+    private final Job[] ring;
+    private final ThreadLocal<SolverSession[]> sessions = new ThreadLocal<SolverSession[]>() {
+        @Override
+        protected SolverSession[] initialValue() {
+            return new SolverSession[SudokuArchive.VARIANTS.length];
+        }
+    };
+    private SudokuLines.Writer out;
+    private long submitted = 0, written = 0;
+    private final long[] statusCounts = new long[4];
+    private final Histogram latencies = new Histogram();
+    private final PriorityQueue<long[]> slowest = new PriorityQueue<>(SLOWEST + 1, new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return Long.compare(a[0], b[0]);
+        }
+    });
+
+    /**
+     * @param check only count the solutions up to 2 instead of solving
+     * @param threads worker threads
+     * @param window puzzles in flight at most
+     */
+    public CorpusSolver(boolean check, int threads, int window) {
+        this.check = check;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "corpus");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ring = new Job[window];
+        for (int k = 0; k < window; k++) {
+            ring[k] = new Job();
+        }
+    }
+
+    /**
+     * Sets where results go: the solution, or with check the puzzle, as one
+     * line, commented unless the puzzle is unique. Null writes nothing.
+     */
+    public void setOutput(SudokuLines.Writer w) {
+        out = w;
+    }
+
+    private Job nextSlot() throws IOException {
+        Job j = ring[(int) (submitted % ring.length)];
+        if (submitted - written == ring.length) {
+            writeOldest();
+        }
+        j.error = null;
+        j.future = null;
+        return j;
+    }
+
+    private void submit(final Job j) {
+        submitted++;
+        j.future = pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                SolverSession[] s = sessions.get();
+                int v = SudokuArchive.variantId(j.topo.cls);
+                if (s[v] == null) {
+                    s[v] = new SolverSession(j.topo);
+                }
+                long t0 = System.nanoTime();
+                long ct = s[v].count(j.cells, 2);
+                if (!check && ct > 0) {
+                    s[v].solveInto(j.cells, j.solution);
+                }
+                j.nanos = System.nanoTime() - t0;
+                j.status = (int) ct;
+            }
+        });
+    }
+
+    private void invalid(Job j, long line, String error) {
+        submitted++;
+        j.line = line;
+        j.status = INVALID;
+        j.error = error;
+    }
+
+    /**
+     * Waits for the oldest job in flight and writes it.
+     */
+    private void writeOldest() throws IOException {
+        Job j = ring[(int) (written % ring.length)];
+        if (j.future != null) {
+            try {
+                j.future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                j.status = INVALID;
+                j.error = "Line " + j.line + ": " + e;
+            }
+        }
+        written++;
+        statusCounts[j.status + 1]++;
+        if (j.status != INVALID) {
+            latencies.add(j.nanos);
+            if (slowest.size() < SLOWEST || j.nanos > slowest.peek()[0]) {
+                slowest.add(new long[]{j.nanos, j.line});
+                if (slowest.size() > SLOWEST) {
+                    slowest.poll();
+                }
+            }
+        }
+        if (out == null) {
+            return;
+        }
+        switch (j.status) {
+            case INVALID:
+                out.comment(j.error);
+                break;
+            case NONE:
+                out.write(j.topo, j.cells, "no solution");
+                break;
+            case UNIQUE:
+                out.write(j.topo, check ? j.cells : j.solution, null);
+                break;
+            default:
+                out.write(j.topo, check ? j.cells : j.solution, "multiple solutions");
+        }
+    }
+
+    /**
+     * Processes every puzzle of is, a file of puzzle lines of topo or a
+     * binary archive, and waits until all results are written.
+     */
+    public void run(InputStream is, SudokuTopology topo) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(is, 1 << 16);
+        if (SudokuArchive.peekMagic(bis) == SudokuArchive.MAGIC) {
+            SudokuArchive.Reader r = new SudokuArchive.Reader(bis);
+            for (long record = 1;; record++) {
+                Job j = nextSlot();
+                try {
+                    j.topo = r.next(j.cells, null);
+                } catch (IOException e) {
+                    // the rest of the archive cannot be trusted
+                    invalid(j, record, "Record " + record + ": " + e.getMessage());
+                    break;
+                }
+                if (j.topo == null) {
+                    break;
+                }
+                j.line = record;
+                submit(j);
+            }
+        } else {
+            SudokuLines.Reader r = new SudokuLines.Reader(bis, topo);
+            while (true) {
+                Job j = nextSlot();
+                try {
+                    if (!r.next(j.cells)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    invalid(j, r.getLine(), e.getMessage());
+                    continue;
+                }
+                j.topo = topo;
+                j.line = r.getLine();
+                submit(j);
+            }
+        }
+        while (written < submitted) {
+            writeOldest();
+        }
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the number of puzzles with status INVALID, NONE, UNIQUE and
+     * MULTIPLE so far, in that order
+     */
+    public long[] getStatusCounts() {
+        return statusCounts.clone();
+    }
+
+    /**
+     * @return the distribution of the solve times in nanoseconds
+     */
+    Histogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return pairs of nanoseconds and line of the slowest puzzles, slowest
+     * first
+     */
+    public List<long[]> getSlowest() {
+        List<long[]> l = new ArrayList<>(slowest);
+        Collections.sort(l, Collections.reverseOrder(slowest.comparator()));
+        return l;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * @param args input file, then optionally -o output file, -check, -t
+     * threads (default all processors), -w window, -c Sudoku class of line
+     * files (default StandardSudoku)
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: CorpusSolver <puzzles> [-o <results>] [-check] [-t <threads>] [-w <window>]"
+                    + " [-c <class>]");
+            System.exit(1);
+        }
+        String outFile = null, cls = "de.rub.sudokucube.StandardSudoku";
+        boolean check = false;
+        int threads = Runtime.getRuntime().availableProcessors(), window = DEFAULT_WINDOW;
+        for (int k = 1; k < args.length; k++) {
+            switch (args[k]) {
+                case "-o":
+                    outFile = args[++k];
+                    break;
+                case "-check":
+                    check = true;
+                    break;
+                case "-t":
+                    threads = Integer.parseInt(args[++k]);
+                    break;
+                case "-w":
+                    window = Integer.parseInt(args[++k]);
+                    break;
+                case "-c":
+                    cls = args[++k];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[k]);
+                    System.exit(1);
+            }
+        }
+        SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+        long t0 = System.nanoTime();
+        try (CorpusSolver cs = new CorpusSolver(check, threads, window);
+                SudokuLines.Writer w = outFile == null ? null
+                        : new SudokuLines.Writer(new FileOutputStream(outFile), topo);
+                InputStream is = new FileInputStream(args[0])) {
+            cs.setOutput(w);
+            cs.run(is, topo);
+            double secs = (System.nanoTime() - t0) / 1e9;
+            long[] ct = cs.getStatusCounts();
+            long puzzles = ct[1] + ct[2] + ct[3];
+            System.out.printf("%d puzzles (%d unique, %d multiple, %d without solution), %d invalid%n",
+                    puzzles, ct[2], ct[3], ct[1], ct[0]);
+            Histogram h = cs.getLatencies();
+            System.out.printf("%d threads: %.3f s, %.0f puzzles/s, p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                    threads, secs, puzzles / secs, h.percentile(0.5) / 1000.0, h.percentile(0.99) / 1000.0,
+                    h.max() / 1000.0);
+            for (long[] s : cs.getSlowest()) {
+                System.out.printf("  line %d: %.1f us%n", s[1], s[0] / 1000.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Catalog of all essentially different solution grids of a Sudoku class, i.e.
+ * one grid per orbit under the SudokuSymmetry group and palette relabelings.
+ * Catalogs are generated offline by main() and shipped as resource
+ * &lt;SimpleName&gt;.cat next to the class.
+ *
+ * @author Sora Steenvoort
+ */
+public class GridCatalog {
+
+    static final int MAGIC = 0x53434154; // "SCAT"
+    static final int VERSION = 1;
+    static final int SPLIT_DEPTH = 3;
+
+    static final private Map<Class<?>, GridCatalog> catalogs = new HashMap<>();
+
+    final SudokuTopology topo;
+    final SudokuSymmetry sym;
+    final int bits, entryBytes, entries;
+    final byte[] data;
+
+    /**
+     * @return the shipped catalog of cls, null if there is none
+     */
+    static public synchronized GridCatalog forClass(Class<?> cls) {
+        if (!catalogs.containsKey(cls)) {
+            GridCatalog c = null;
+            InputStream is = cls.getResourceAsStream(cls.getSimpleName() + ".cat");
+            if (is != null) {
+                try {
+                    c = read(is);
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+            catalogs.put(cls, c);
+        }
+        return catalogs.get(cls);
+    }
+
+    private GridCatalog(SudokuTopology topology, int n, byte[] packed) {
+        topo = topology;
+        sym = SudokuSymmetry.of(topo.cls);
+        bits = bits(topo);
+        entryBytes = (topo.size * bits + 7) / 8;
+        entries = n;
+        data = packed;
+    }
+
+    static private int bits(SudokuTopology topo) {
+        return 32 - Integer.numberOfLeadingZeros(topo.symbols - 1);
+    }
+
+    public int size() {
+        return entries;
+    }
+
+    /**
+     * Unpacks entry k into cells.
+     */
+    public int[] entry(int k, int[] cells) {
+        int bit = k * entryBytes * 8;
+        int mask = (1 << bits) - 1;
+        for (int i = 0; i < topo.size; i++, bit += bits) {
+            int w = (data[bit >> 3] & 0xff) | (bit + bits > ((bit >> 3) + 1) * 8 ? (data[(bit >> 3) + 1] & 0xff) << 8 : 0);
+            cells[i] = ((w >> (bit & 7)) & mask) + 1;
+        }
+        return cells;
+    }
+
+    /**
+     * Writes a random entry, moved by a random symmetry and relabeled by a
+     * random palette permutation, into out.
+     */
+    public int[] randomGrid(Random rnd, int[] out) {
+        int[] cells = entry(rnd.nextInt(entries), new int[topo.size]);
+        return sym.apply(cells, sym.randomElement(rnd), sym.randomRelabeling(rnd), out);
+    }
+
+    public Sudoku randomGrid(Random rnd) {
+        return topo.decode(randomGrid(rnd, new int[topo.size]));
+    }
+
+    static GridCatalog read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a grid catalog!");
+        }
+        String clsName = in.readUTF();
+        SudokuTopology topo;
+        try {
+            topo = SudokuTopology.of(Class.forName(clsName));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Grid catalog for unknown class " + clsName);
+        }
+        if (in.readInt() != topo.size || in.readInt() != topo.symbols) {
+            throw new IOException("Grid catalog does not match " + clsName);
+        }
+        int n = in.readInt();
+        int len = n * ((topo.size * bits(topo) + 7) / 8);
+        byte[] packed = new byte[len + 1];
+        in.readFully(packed, 0, len);
+        return new GridCatalog(topo, n, packed);
+    }
+
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(topo.cls.getName());
+        out.writeInt(topo.size);
+        out.writeInt(topo.symbols);
+        out.writeInt(entries);
+        out.write(data, 0, entries * entryBytes);
+        out.flush();
+    }
+
+    static private GridCatalog pack(SudokuTopology topo, List<int[]> grids) {
+        int bits = bits(topo);
+        byte[] packed = new byte[grids.size() * ((topo.size * bits + 7) / 8) + 1];
+        int bit = 0;
+        for (int[] g : grids) {
+            for (int i = 0; i < topo.size; i++, bit += bits) {
+                int w = (g[i] - 1) << (bit & 7);
+                packed[bit >> 3] |= (byte) w;
+                packed[(bit >> 3) + 1] |= (byte) (w >> 8);
+            }
+            bit = ((bit + 7) >> 3) << 3;
+        }
+        return new GridCatalog(topo, grids.size(), packed);
+    }
+
+    /**
+     * Enumerates one grid per orbit. The first house is fixed to 1..symbols,
+     * which breaks the relabelings, the remaining symmetries are broken by
+     * keeping only the grids passing SudokuSymmetry.isCanonical.
+     */
+    static public GridCatalog enumerate(Class<?> cls) {
+        SudokuTopology topo = SudokuTopology.of(cls);
+        int[] first = topo.houses.length > 0 ? topo.houses[0] : new int[0];
+        for (int k = 0; k < topo.symbols; k++) {
+            if (first.length != topo.symbols || first[k] != k) {
+                throw new IllegalArgumentException("The first nodes of " + cls.getSimpleName() + " do not form a house!");
+            }
+        }
+        int[] cells = new int[topo.size];
+        for (int k = 0; k < topo.symbols; k++) {
+            cells[k] = k + 1;
+        }
+        int[] cand = new int[topo.size];
+        List<int[]> grids = new ArrayList<>();
+        if (new SudokuSolver(topo).load(cells, cand)) {
+            grids = new ForkJoinPool().invoke(new Enumeration(topo, SudokuSymmetry.of(cls), cand, 0));
+        }
+        Collections.sort(grids, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                for (int i = 0; i < a.length; i++) {
+                    if (a[i] != b[i]) {
+                        return a[i] < b[i] ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        });
+        return pack(topo, grids);
+    }
+
+    @SuppressWarnings("serial")
+    static private class Enumeration extends RecursiveTask<List<int[]>> {
+
+        final SudokuTopology topo;
+        final SudokuSymmetry sym;
+        final int[] cand;
+        final int depth;
+
+        Enumeration(SudokuTopology topology, SudokuSymmetry symmetry, int[] candidates, int d) {
+            topo = topology;
+            sym = symmetry;
+            cand = candidates;
+            depth = d;
+        }
+
+        @Override
+        protected List<int[]> compute() {
+            final List<int[]> grids = new ArrayList<>();
+            SudokuSolver solver = new SudokuSolver(topo);
+            int cell = solver.selectCell(cand);
+            if (depth < SPLIT_DEPTH && cell != -1) {
+                List<Enumeration> tasks = new ArrayList<>();
+                for (int m = cand[cell]; m != 0; m &= m - 1) {
+                    int[] next = cand.clone();
+                    if (solver.assign(next, cell, m & -m)) {
+                        tasks.add(new Enumeration(topo, sym, next, depth + 1));
+                    }
+                }
+                invokeAll(tasks);
+                for (Enumeration t : tasks) {
+                    grids.addAll(t.join());
+                }
+            } else {
+                solver.enumerate(cand, new SudokuSolver.Visitor() {
+                    @Override
+                    public boolean visit(int[] cells) {
+                        if (sym.isCanonical(cells)) {
+                            grids.add(cells.clone());
+                        }
+                        return true;
+                    }
+                });
+            }
+            return grids;
+        }
+    }
+
+    /**
+     * Generates the catalog of a Sudoku class.
+     *
+     * @param args class name and output file
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: GridCatalog <sudoku class> <output file>");
+            System.exit(1);
+        }
+        long t0 = System.currentTimeMillis();
+        GridCatalog c = enumerate(Class.forName(args[0]));
+        try (OutputStream os = new FileOutputStream(args[1])) {
+            c.write(os);
+        }
+        System.err.println(c.size() + " grids of " + args[0] + " in "
+                + (System.currentTimeMillis() - t0) / 1000.0 + " seconds");
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Writes a PropagationKernel for every Sudoku class, with the peer and house
+ * loops of SudokuSolver unrolled into constant indices. Every cell and house
+ * gets a method of its own, which keeps the methods small enough for the JIT
+ * to compile. Run by the generate-kernels target of build.xml, which the
+ * default build leaves out.
+ *
+ * @author Sora Steenvoort
+ */
+public class KernelGenerator {
+
+    static final String[] CLASSES = SudokuBench.CLASSES;
+
+    /**
+     * @return the simple name of the kernel class of cls
+     */
+    static String kernelName(Class<?> cls) {
+        return cls.getSimpleName() + "Kernel";
+    }
+
+    static void write(SudokuTopology topo, PrintWriter w) {
+        String name = kernelName(topo.cls);
+        w.println("/* Generated by KernelGenerator from " + topo.cls.getName() + ", do not edit. */");
+        w.println("package de.rub.sudokucube;");
+        w.println();
+        w.println("final class " + name + " implements PropagationKernel {");
+        w.println();
+        w.println("    static final int ALL = " + topo.all + ";");
+        w.println();
+        w.println("    @Override");
+        w.println("    public long fingerprint() {");
+        w.println("        return " + topo.fingerprint() + "L;");
+        w.println("    }");
+        w.println();
+        w.println("    @Override");
+        w.println("    public int eliminate(int[] cand, int cell, int[] queue, int tail) {");
+        w.println("        switch (cell) {");
+        for (int i = 0; i < topo.size; i++) {
+            w.println("            case " + i + ":");
+            w.println("                return eliminate" + i + "(cand, queue, tail);");
+        }
+        w.println("            default:");
+        w.println("                throw new IllegalArgumentException(\"no cell \" + cell);");
+        w.println("        }");
+        w.println("    }");
+        w.println();
+        w.println("    @Override");
+        w.println("    public int hiddenSingles(int[] cand, int[] queue, int tail) {");
+        for (int h = 0; h < topo.houses.length; h++) {
+            w.println("        if ((tail = house" + h + "(cand, queue, tail)) < 0) {");
+            w.println("            return -1;");
+            w.println("        }");
+        }
+        w.println("        return tail;");
+        w.println("    }");
+        for (int i = 0; i < topo.size; i++) {
+            w.println();
+            w.println("    static private int eliminate" + i + "(int[] cand, int[] queue, int t) {");
+            w.println("        int b = cand[" + i + "], m;");
+            for (int p : topo.peers[i]) {
+                w.println("        if (((m = cand[" + p + "]) & b) != 0) {");
+                w.println("            if ((m &= ~b) == 0) {");
+                w.println("                return -1;");
+                w.println("            }");
+                w.println("            cand[" + p + "] = m;");
+                w.println("            if ((m & (m - 1)) == 0) {");
+                w.println("                queue[t++] = " + p + ";");
+                w.println("            }");
+                w.println("        }");
+            }
+            w.println("        return t;");
+            w.println("    }");
+        }
+        for (int h = 0; h < topo.houses.length; h++) {
+            int[] house = topo.houses[h];
+            w.println();
+            w.println("    static private int house" + h + "(int[] cand, int[] queue, int t) {");
+            w.println("        int once = 0, twice = 0, m;");
+            for (int c : house) {
+                w.println("        m = cand[" + c + "];");
+                w.println("        twice |= once & m;");
+                w.println("        once |= m;");
+            }
+            w.println("        if (once != ALL) {");
+            w.println("            return -1;");
+            w.println("        }");
+            w.println("        for (int hidden = once & ~twice; hidden != 0; hidden &= hidden - 1) {");
+            w.println("            int b = hidden & -hidden;");
+            String prefix = "            ";
+            for (int k = 0; k < house.length; k++) {
+                int c = house[k];
+                w.println(prefix + "if ((cand[" + c + "] & b) != 0) {");
+                w.println("                if (cand[" + c + "] != b) {");
+                w.println("                    cand[" + c + "] = b;");
+                w.println("                    queue[t++] = " + c + ";");
+                w.println("                }");
+                prefix = "            } else ";
+            }
+            w.println("            }");
+            w.println("        }");
+            w.println("        return t;");
+            w.println("    }");
+        }
+        w.println("}");
+    }
+
+    /**
+     * @param args the source root to write to
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        File dir = new File(args[0], "de/rub/sudokucube");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        for (String cls : CLASSES) {
+            SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+            try (PrintWriter w = new PrintWriter(new File(dir, kernelName(topo.cls) + ".java"), "UTF-8")) {
+                write(topo, w);
+            }
+        }
+    }
+}
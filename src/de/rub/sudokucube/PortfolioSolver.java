@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs several solver strategies on the same cells, each on its own thread.
+ * The first strategy to finish gives the answer and the others are
+ * cancelled. Wins are recorded per Sudoku class and strategy for all
+ * instances, and the default portfolio prefers the strategies that won most
+ * often. Boards whose search tree the SearchEstimator finds small are not
+ * raced but counted by the first strategy on the calling thread, and do not
+ * count as wins.
+ *
+ * @author Sora Steenvoort
+ */
+public class PortfolioSolver implements SolutionCounter {
+
+    /**
+     * Names of SudokuBench.setups() raced by default, in order of preference
+     * before any wins are recorded.
+     */
+    static final String[] DEFAULT_STRATEGIES = {"plain", "restarts", "alldiff+probing(2)",
+        "backjump", "sat"};
+
+    static final double INLINE_NODES = 64;
+    static final int PROBES = 8;
+
+    static final private ConcurrentMap<Class<?>, ConcurrentMap<String, AtomicLong>> wins
+            = new ConcurrentHashMap<>();
+
+    final SudokuTopology topo;
+    private final String[] names;
+    private final SolutionCounter[] engines;
+    private final ExecutorService pool;
+    private final SearchEstimator estimator;
+    private String lastWinner = null;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Races as many of the default strategies as there are processors, but
+     * at least two.
+     */
+    public PortfolioSolver(SudokuTopology topology) {
+        this(topology, defaultStrategies(topology.cls,
+                Math.max(2, Runtime.getRuntime().availableProcessors())));
+    }
+
+    public PortfolioSolver(SudokuTopology topology, Map<String, SudokuBench.Setup> strategies) {
+        topo = topology;
+        names = strategies.keySet().toArray(new String[strategies.size()]);
+        engines = new SolutionCounter[names.length];
+        for (int k = 0; k < names.length; k++) {
+            engines[k] = strategies.get(names[k]).create(topo);
+        }
+        estimator = new SearchEstimator(topo, new Random());
+        pool = Executors.newFixedThreadPool(names.length, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "portfolio");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the n default strategies of cls with the most wins so far
+     */
+    static public Map<String, SudokuBench.Setup> defaultStrategies(Class<?> cls, int n) {
+        final Map<String, Long> w = getWinStatistics(cls);
+        List<String> order = new ArrayList<>();
+        Collections.addAll(order, DEFAULT_STRATEGIES);
+        // stable, so ties keep the default order
+        Collections.sort(order, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                Long x = w.get(a), y = w.get(b);
+                return Long.compare(y == null ? 0 : y, x == null ? 0 : x);
+            }
+        });
+        Map<String, SudokuBench.Setup> all = SudokuBench.setups();
+        Map<String, SudokuBench.Setup> m = new LinkedHashMap<>();
+        for (String name : order.subList(0, Math.min(n, order.size()))) {
+            m.put(name, all.get(name));
+        }
+        return m;
+    }
+
+    /**
+     * @return wins per strategy name for cls
+     */
+    static public Map<String, Long> getWinStatistics(Class<?> cls) {
+        Map<String, Long> m = new LinkedHashMap<>();
+        ConcurrentMap<String, AtomicLong> w = wins.get(cls);
+        if (w != null) {
+            for (Map.Entry<String, AtomicLong> e : w.entrySet()) {
+                m.put(e.getKey(), e.getValue().get());
+            }
+        }
+        return m;
+    }
+
+    static private void recordWin(Class<?> cls, String name) {
+        ConcurrentMap<String, AtomicLong> w = wins.get(cls);
+        if (w == null) {
+            wins.putIfAbsent(cls, new ConcurrentHashMap<String, AtomicLong>());
+            w = wins.get(cls);
+        }
+        AtomicLong ct = w.get(name);
+        if (ct == null) {
+            w.putIfAbsent(name, new AtomicLong());
+            ct = w.get(name);
+        }
+        ct.incrementAndGet();
+    }
+
+    /**
+     * Returns the count of the first strategy to finish. Returns only after
+     * the other strategies have stopped, so that they can be reused. The
+     * engines are resumed here, before their counts are submitted, so the
+     * cancel() after the win also stops a strategy whose thread has not
+     * started yet.
+     */
+    @Override
+    public synchronized long count(int[] cells, final long limit) {
+        for (SolutionCounter engine : engines) {
+            engine.resume();
+        }
+        if (cancelled) {
+            // cancel() came before the resume() above
+            for (SolutionCounter engine : engines) {
+                engine.cancel();
+            }
+        }
+        if (engines.length == 1 || estimator.estimate(cells, PROBES).nodes < INLINE_NODES) {
+            lastWinner = names[0];
+            return engines[0].count(cells, limit);
+        }
+        CompletionService<Long> cs = new ExecutorCompletionService<>(pool);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (final SolutionCounter engine : engines) {
+            final int[] copy = cells.clone();
+            futures.add(cs.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return engine.count(copy, limit);
+                }
+            }));
+        }
+        Long result = null;
+        RuntimeException failure = null;
+        lastWinner = null;
+        try {
+            for (int k = 0; k < engines.length && result == null; k++) {
+                Future<Long> f = cs.take();
+                try {
+                    result = f.get();
+                    lastWinner = names[futures.indexOf(f)];
+                } catch (ExecutionException e) {
+                    System.err.println(e);
+                    failure = new RuntimeException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (SolutionCounter engine : engines) {
+                engine.cancel();
+            }
+            for (Future<Long> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // reported above or irrelevant after the win
+                }
+            }
+        }
+        if (result == null) {
+            throw failure != null ? failure : new RuntimeException("portfolio interrupted");
+        }
+        recordWin(topo.cls, lastWinner);
+        return result;
+    }
+
+    /**
+     * @return the strategy that answered the last count(), null if none did
+     */
+    public String getLastWinner() {
+        return lastWinner;
+    }
+
+    /**
+     * @return the nodes visited by all strategies, winners and losers
+     */
+    @Override
+    public long getNodes() {
+        long n = 0;
+        for (SolutionCounter engine : engines) {
+            n += engine.getNodes();
+        }
+        return n;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        for (SolutionCounter engine : engines) {
+            engine.cancel();
+        }
+    }
+
+    @Override
+    public void resume() {
+        cancelled = false;
+        for (SolutionCounter engine : engines) {
+            engine.resume();
+        }
+    }
+
+    /**
+     * Stops the threads, the solver must not be used afterwards.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+/**
+ * The singles propagation of SudokuSolver specialized to one topology, with
+ * constant cell indices. Implementations are written by KernelGenerator at
+ * build time and found by SudokuTopology.kernel().
+ *
+ * @author Sora Steenvoort
+ */
+interface PropagationKernel {
+
+    /**
+     * @return the SudokuTopology.fingerprint() the kernel was generated from
+     */
+    long fingerprint();
+
+    /**
+     * Removes the single candidate of cell from its peers, appending peers
+     * left with a single candidate to queue.
+     *
+     * @return the new end of queue, -1 on contradiction
+     */
+    int eliminate(int[] cand, int cell, int[] queue, int tail);
+
+    /**
+     * Reduces every cell that is the only place of a value in a house to
+     * that value, appending it to queue.
+     *
+     * @return the new end of queue, -1 if a house misses a value
+     */
+    int hiddenSingles(int[] cand, int[] queue, int tail);
+}
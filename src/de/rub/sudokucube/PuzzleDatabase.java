@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Puzzles with their solutions in one memory-mapped file. Records have a
+ * fixed size, so the offset of record id is HEADER + id * recordSize and
+ * access by id takes constant time. A record holds the variant id of
+ * SudokuArchive, the clue count, the difficulty (SudokuSolver.rate, -1 if
+ * singles do not suffice), and one byte per cell holding the puzzle value
+ * in the low and the solution value in the high four bits. Records are only
+ * ever appended; the count in the header tells how many of them are valid.
+ * Reads may run concurrently with each other, appends are serialized.
+ *
+ * @author Sora Steenvoort
+ */
+public class PuzzleDatabase implements Closeable {
+
+    static final int MAGIC = 0x53554444; // "SUDD"
+    static final int VERSION = 1;
+    static final int HEADER = 64; // magic, version, record size, max cells, count
+    static final int OFS_VARIANT = 0, OFS_CLUES = 1, OFS_DIFFICULTY = 2, OFS_CELLS = 4;
+    static final long INITIAL_CAPACITY = 1024; // records
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final SudokuTopology[] topologies = new SudokuTopology[SudokuArchive.VARIANTS.length];
+    final int maxCells, recordSize;
+    private volatile MappedByteBuffer map;
+    private volatile long count;
+    private long capacity;
+
+    /**
+     * Opens the database in f, creating it if it does not exist.
+     */
+    public PuzzleDatabase(File f) throws IOException {
+        boolean create = !f.exists() || f.length() == 0;
+        file = new RandomAccessFile(f, "rw");
+        channel = file.getChannel();
+        for (int k = 0; k < topologies.length; k++) {
+            try {
+                topologies[k] = SudokuTopology.of(Class.forName(SudokuArchive.VARIANTS[k]));
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+        if (create) {
+            maxCells = SudokuArchive.maxSize();
+            recordSize = (OFS_CELLS + maxCells + 7) & ~7;
+            count = 0;
+        } else {
+            MappedByteBuffer h = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (h.getInt(0) != MAGIC) {
+                throw new IOException("Not a puzzle database: " + f);
+            }
+            if (h.getInt(4) != VERSION) {
+                throw new IOException("Unsupported database version " + h.getInt(4));
+            }
+            recordSize = h.getInt(8);
+            maxCells = h.getInt(12);
+            count = h.getLong(16);
+            if (maxCells < SudokuArchive.maxSize()) {
+                throw new IOException("Database too narrow for the current variants");
+            }
+        }
+        remap(Math.max(INITIAL_CAPACITY, count));
+        if (create) {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(8, recordSize);
+            map.putInt(12, maxCells);
+            map.putLong(16, 0);
+        }
+    }
+
+    private void remap(long records) throws IOException {
+        long bytes = HEADER + records * recordSize;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("Database full");
+        }
+        capacity = records;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+    }
+
+    /**
+     * @return the number of records
+     */
+    public long size() {
+        return count;
+    }
+
+    private int offset(long id) {
+        if (id < 0 || id >= count) {
+            throw new IndexOutOfBoundsException("No puzzle " + id);
+        }
+        return (int) (HEADER + id * recordSize);
+    }
+
+    /**
+     * Appends a puzzle with its unique solution.
+     *
+     * @return the id of the new record
+     */
+    public synchronized long append(SudokuTopology topo, int[] puzzle, int[] solution, int difficulty)
+            throws IOException {
+        if (count == capacity) {
+            remap(Math.min(2 * capacity, (Integer.MAX_VALUE - HEADER) / recordSize));
+            if (count == capacity) {
+                throw new IOException("Database full");
+            }
+        }
+        MappedByteBuffer m = map;
+        int ofs = (int) (HEADER + count * recordSize);
+        int clues = 0;
+        for (int i = 0; i < topo.size; i++) {
+            m.put(ofs + OFS_CELLS + i, (byte) (puzzle[i] | solution[i] << 4));
+            if (puzzle[i] != 0) {
+                clues++;
+            }
+        }
+        m.put(ofs + OFS_VARIANT, (byte) SudokuArchive.variantId(topo.cls));
+        m.put(ofs + OFS_CLUES, (byte) clues);
+        m.putShort(ofs + OFS_DIFFICULTY, (short) difficulty);
+        m.putLong(16, count + 1);
+        return count++;
+    }
+
+    /**
+     * Appends a puzzle, solving and rating it.
+     *
+     * @return the id of the new record
+     * @throws IllegalArgumentException if the puzzle has no unique solution
+     */
+    public long append(SudokuTopology topo, int[] puzzle) throws IOException {
+        SudokuSolver solver = new SudokuSolver(topo);
+        int[] solution = new int[topo.size];
+        if (solver.count(puzzle, 2) != 1 || !solver.solve(puzzle, solution)) {
+            throw new IllegalArgumentException("Puzzle without unique solution");
+        }
+        return append(topo, puzzle, solution, solver.rate(puzzle));
+    }
+
+    public SudokuTopology variant(long id) {
+        return topologies[map.get(offset(id) + OFS_VARIANT)];
+    }
+
+    public int clues(long id) {
+        return map.get(offset(id) + OFS_CLUES) & 0xff;
+    }
+
+    public int difficulty(long id) {
+        return map.getShort(offset(id) + OFS_DIFFICULTY);
+    }
+
+    /**
+     * Decodes record id straight from the mapping into puzzle and solution,
+     * either of which may be null.
+     *
+     * @return the topology of the record
+     */
+    public SudokuTopology read(long id, int[] puzzle, int[] solution) {
+        MappedByteBuffer m = map;
+        int ofs = offset(id);
+        SudokuTopology topo = topologies[m.get(ofs + OFS_VARIANT)];
+        for (int i = 0; i < topo.size; i++) {
+            int b = m.get(ofs + OFS_CELLS + i);
+            if (puzzle != null) {
+                puzzle[i] = b & 0xf;
+            }
+            if (solution != null) {
+                solution[i] = (b >> 4) & 0xf;
+            }
+        }
+        return topo;
+    }
+
+    public Sudoku puzzle(long id) {
+        int[] cells = new int[maxCells];
+        return read(id, cells, null).decode(cells);
+    }
+
+    public Sudoku solution(long id) {
+        int[] cells = new int[maxCells];
+        return read(id, null, cells).decode(cells);
+    }
+
+    /**
+     * Writes the mapping back to the file.
+     */
+    public synchronized void flush() {
+        map.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Derives equivalent puzzles from one generated puzzle and its solution by
+ * random elements of the SudokuSymmetry group and palette relabelings. Every
+ * generator of the group preserves the adjacency, so a derived puzzle has
+ * exactly as many solutions as the original, and SudokuSolver.rate() gives
+ * the same rating. One instance must only be used by one thread at a time.
+ *
+ * @author Sora Steenvoort
+ */
+public class PuzzleDeriver {
+
+    final SudokuTopology topo;
+    final SudokuSymmetry sym;
+    final int[] puz, sln;
+    private final Random rnd;
+    private final int[] perm, idx, relabel;
+
+    public PuzzleDeriver(Sudoku puzzle, Sudoku solution, Random random) {
+        Sudoku p = puzzle.sanitize();
+        topo = SudokuTopology.of(p);
+        sym = SudokuSymmetry.of(p.getClass());
+        puz = topo.encode(p);
+        sln = topo.encode(solution);
+        rnd = random;
+        perm = new int[topo.size];
+        idx = new int[sym.factors.length];
+        relabel = new int[topo.symbols + 1];
+    }
+
+    /**
+     * Writes the next derived puzzle and its solution into puzOut and slnOut
+     * (slnOut may be null). Allocates nothing.
+     */
+    public void next(int[] puzOut, int[] slnOut) {
+        sym.randomElement(rnd, perm, idx);
+        sym.randomRelabeling(rnd, relabel);
+        sym.apply(puz, perm, relabel, puzOut);
+        if (slnOut != null) {
+            sym.apply(sln, perm, relabel, slnOut);
+        }
+    }
+
+    /**
+     * Derives up to k pairwise distinct puzzles. Fewer are returned if the
+     * orbit of the puzzle turns out to be smaller than k.
+     *
+     * @return pairs {puzzle, solution}
+     */
+    public List<Sudoku[]> derive(int k) {
+        List<Sudoku[]> result = new ArrayList<>();
+        Set<Cells> seen = new HashSet<>();
+        int misses = 0;
+        while (result.size() < k && misses < 64 + 4 * k) {
+            int[] p = new int[topo.size], s = new int[topo.size];
+            next(p, s);
+            if (seen.add(new Cells(p))) {
+                result.add(new Sudoku[]{topo.decode(p), topo.decode(s)});
+            } else {
+                misses++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks that a derived puzzle is still unique and rated as the original.
+     * Meant for testing, this solves both puzzles.
+     */
+    public boolean check(int[] derived) {
+        SudokuSolver solver = new SudokuSolver(topo);
+        return solver.count(derived, 2) == solver.count(puz, 2)
+                && solver.rate(derived) == solver.rate(puz);
+    }
+
+    static private class Cells {
+
+        final int[] cells;
+        final int hash;
+
+        Cells(int[] c) {
+            cells = c;
+            hash = Arrays.hashCode(c);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Cells && Arrays.equals(cells, ((Cells) o).cells);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Sorted secondary indexes of a PuzzleDatabase, kept in a file next to it.
+ * The main index orders the records by variant, difficulty, clue count and
+ * id, packed into one long each, so a query for a variant with ranges of
+ * difficulty and clues is a binary search and a range scan per difficulty
+ * present. The hash index orders the ids by the 64 bit hash of the canonical
+ * form of the puzzle; it is brought up to date on its first use. Records
+ * appended to the database after the index was saved are added by update().
+ *
+ * @author Sora Steenvoort
+ */
+public class PuzzleIndex {
+
+    static final int MAGIC = 0x53554449; // "SUDI"
+    static final int VERSION = 1;
+
+    static private PuzzleIndex shared = null;
+
+    final PuzzleDatabase db;
+    private long[] keys = new long[0];
+    private long[] hashes = new long[0];
+    private int[] hashIds = new int[0];
+    private int[] ranges = new int[64];
+    private int indexed = 0, hashed = 0, savedCount = 0;
+
+    /**
+     * Loads the index of db from f if f exists and brings it up to date.
+     */
+    public PuzzleIndex(PuzzleDatabase db, File f) throws IOException {
+        this.db = db;
+        if (f.exists()) {
+            load(f);
+        }
+        update();
+    }
+
+    /**
+     * The index used by the user interface. If the system property
+     * sudokucube.puzzleDatabase names a database file, it is opened on first
+     * use with its index in the same file name plus ".idx", which is written
+     * back after an update.
+     *
+     * @return null if there is no database
+     */
+    static public synchronized PuzzleIndex shared() {
+        if (shared == null) {
+            String path = System.getProperty("sudokucube.puzzleDatabase");
+            if (path == null || !new File(path).exists()) {
+                return null;
+            }
+            try {
+                File idx = new File(path + ".idx");
+                PuzzleDatabase db = new PuzzleDatabase(new File(path));
+                shared = new PuzzleIndex(db, idx);
+                if (shared.indexed > shared.savedCount || !idx.exists()) {
+                    shared.save(idx);
+                }
+            } catch (IOException e) {
+                System.err.println(e);
+                return null;
+            }
+        }
+        return shared;
+    }
+
+    static long key(int variant, int difficulty, int clues, long id) {
+        return (long) variant << 56 | (long) (difficulty + 1 & 0xffff) << 40 | (long) clues << 32 | id;
+    }
+
+    static private int difficultyOf(long key) {
+        return (int) (key >>> 40 & 0xffff) - 1;
+    }
+
+    /**
+     * Adds the records appended since the last update to the main index.
+     */
+    public synchronized void update() {
+        int n = (int) db.size();
+        if (n == indexed) {
+            return;
+        }
+        long[] k2 = Arrays.copyOf(keys, n);
+        for (int id = indexed; id < n; id++) {
+            k2[id] = key(SudokuArchive.variantId(db.variant(id).cls), db.difficulty(id), db.clues(id), id);
+        }
+        Arrays.sort(k2, indexed, n);
+        // both parts are sorted, merge them
+        long[] merged = new long[n];
+        int p = 0, q = indexed;
+        for (int r = 0; r < n; r++) {
+            merged[r] = q == n || p < indexed && k2[p] <= k2[q] ? k2[p++] : k2[q++];
+        }
+        keys = merged;
+        indexed = n;
+    }
+
+    /**
+     * Adds the records appended since the last call to the hash index.
+     * Canonicalizing takes milliseconds per puzzle, so this is only done when
+     * the hash index is used.
+     */
+    private void updateHashes() {
+        int n = (int) db.size();
+        if (n == hashed) {
+            return;
+        }
+        int add = n - hashed;
+        final long[] entries = new long[add];
+        Integer[] order = new Integer[add];
+        int[] cells = new int[db.maxCells];
+        for (int k = 0; k < add; k++) {
+            SudokuTopology topo = db.read(hashed + k, cells, null);
+            entries[k] = SudokuSymmetry.of(topo.cls).canonicalize(Arrays.copyOf(cells, topo.size)).hash64();
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(entries[a], entries[b]);
+            }
+        });
+        long[] h2 = new long[n];
+        int[] i2 = new int[n];
+        int p = 0, q = 0;
+        for (int r = 0; r < n; r++) {
+            if (q == add || p < hashed && hashes[p] <= entries[order[q]]) {
+                h2[r] = hashes[p];
+                i2[r] = hashIds[p++];
+            } else {
+                h2[r] = entries[order[q]];
+                i2[r] = hashed + order[q++];
+            }
+        }
+        hashes = h2;
+        hashIds = i2;
+        hashed = n;
+    }
+
+    /**
+     * @return the number of records indexed
+     */
+    public int size() {
+        return indexed;
+    }
+
+    static private int lowerBound(long[] a, int to, long key) {
+        int lo = 0, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Collects the ranges of keys matching the query as pairs of from and
+     * to indexes into the field ranges, one pair per difficulty present.
+     *
+     * @return the number of ints written to ranges
+     */
+    private int ranges(Class<?> cls, int clueMin, int clueMax, int diffMin, int diffMax) {
+        int v = SudokuArchive.variantId(cls);
+        long[] k = keys;
+        int n = indexed, ct = 0;
+        int end = lowerBound(k, n, key(v, diffMax + 1, 0, 0));
+        int lo = lowerBound(k, n, key(v, diffMin, 0, 0));
+        while (lo < end) {
+            int d = difficultyOf(k[lo]);
+            lo = lowerBound(k, n, key(v, d, clueMin, 0));
+            int hi = lowerBound(k, n, key(v, d, clueMax, 0) + (1L << 32));
+            if (hi > lo) {
+                if (ct == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, 2 * ct);
+                }
+                ranges[ct++] = lo;
+                ranges[ct++] = hi;
+            }
+            lo = lowerBound(k, n, key(v, d + 1, 0, 0));
+        }
+        return ct;
+    }
+
+    /**
+     * @return the ids of the puzzles of cls with clue count and difficulty
+     * in the given ranges (bounds included), sorted by difficulty and clues
+     */
+    public synchronized long[] query(Class<?> cls, int clueMin, int clueMax, int diffMin, int diffMax) {
+        int ct = ranges(cls, clueMin, clueMax, diffMin, diffMax);
+        long[] ids = new long[count(ct)];
+        int p = 0;
+        for (int k = 0; k < ct; k += 2) {
+            for (int i = ranges[k]; i < ranges[k + 1]; i++) {
+                ids[p++] = keys[i] & 0xffffffffL;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the number of puzzles matching the query
+     */
+    public synchronized int count(Class<?> cls, int clueMin, int clueMax, int diffMin, int diffMax) {
+        return count(ranges(cls, clueMin, clueMax, diffMin, diffMax));
+    }
+
+    private int count(int ct) {
+        int total = 0;
+        for (int k = 0; k < ct; k += 2) {
+            total += ranges[k + 1] - ranges[k];
+        }
+        return total;
+    }
+
+    /**
+     * @return a uniformly chosen id matching the query, -1 if none does
+     */
+    public synchronized long random(Class<?> cls, int clueMin, int clueMax, int diffMin, int diffMax, Random rnd) {
+        int ct = ranges(cls, clueMin, clueMax, diffMin, diffMax);
+        int total = count(ct);
+        if (total == 0) {
+            return -1;
+        }
+        int pick = rnd.nextInt(total);
+        for (int k = 0;; k += 2) {
+            if (pick < ranges[k + 1] - ranges[k]) {
+                return keys[ranges[k] + pick] & 0xffffffffL;
+            }
+            pick -= ranges[k + 1] - ranges[k];
+        }
+    }
+
+    /**
+     * @return the ids of the puzzles whose canonical form has the hash h,
+     * i.e. the candidates for puzzles equivalent to one with that hash
+     */
+    public synchronized long[] byCanonicalHash(long h) {
+        updateHashes();
+        int lo = lowerBound(hashes, hashed, h);
+        int hi = lo;
+        while (hi < hashed && hashes[hi] == h) {
+            hi++;
+        }
+        long[] ids = new long[hi - lo];
+        for (int k = lo; k < hi; k++) {
+            ids[k - lo] = hashIds[k];
+        }
+        return ids;
+    }
+
+    public synchronized void save(File f) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(indexed);
+            for (int k = 0; k < indexed; k++) {
+                out.writeLong(keys[k]);
+            }
+            out.writeInt(hashed);
+            for (int k = 0; k < hashed; k++) {
+                out.writeLong(hashes[k]);
+                out.writeInt(hashIds[k]);
+            }
+        }
+        savedCount = indexed;
+    }
+
+    private void load(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                System.err.println("Ignoring invalid index " + f);
+                return;
+            }
+            int n = in.readInt();
+            if (n > db.size()) {
+                System.err.println("Ignoring index " + f + " of a larger database");
+                return;
+            }
+            long[] k = new long[n];
+            for (int i = 0; i < n; i++) {
+                k[i] = in.readLong();
+            }
+            int m = in.readInt();
+            if (m > n) {
+                System.err.println("Ignoring invalid index " + f);
+                return;
+            }
+            long[] h = new long[m];
+            int[] ids = new int[m];
+            for (int i = 0; i < m; i++) {
+                h[i] = in.readLong();
+                ids[i] = in.readInt();
+            }
+            keys = k;
+            hashes = h;
+            hashIds = ids;
+            indexed = savedCount = n;
+            hashed = m;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.Arrays;
+
+/**
+ * Solves and counts with the SatSolver. The CNF is derived from the
+ * SudokuTopology, i.e. from the adjacency and palette of the Sudoku class:
+ * variable cell * symbols + v + 1 states that cell holds value v + 1. Every
+ * cell holds at least one and at most one value, peers differ, and every
+ * house holds every value. Further solutions are found by blocking the
+ * previous ones.
+ *
+ * @author Sora Steenvoort
+ */
+public class SatCounter implements SolutionCounter {
+
+    final SudokuTopology topo;
+    private final int[] solution;
+    private long nodes = 0;
+    private volatile boolean cancelled = false;
+    private volatile SatSolver current = null;
+
+    public SatCounter(SudokuTopology topology) {
+        topo = topology;
+        solution = new int[topo.size];
+    }
+
+    int var(int cell, int v) {
+        return cell * topo.symbols + v + 1;
+    }
+
+    /**
+     * @return a solver holding the rules of the class and the given cells
+     */
+    public SatSolver encode(int[] cells) {
+        int n = topo.symbols;
+        SatSolver sat = new SatSolver();
+        for (int k = 0; k < topo.size * n; k++) {
+            sat.newVar();
+        }
+        for (int i = 0; i < topo.size; i++) {
+            int[] some = new int[n];
+            for (int v = 0; v < n; v++) {
+                some[v] = var(i, v);
+                for (int w = v + 1; w < n; w++) {
+                    sat.addClause(-var(i, v), -var(i, w));
+                }
+            }
+            sat.addClause(some);
+            for (int p : topo.peers[i]) {
+                if (p > i) {
+                    for (int v = 0; v < n; v++) {
+                        sat.addClause(-var(i, v), -var(p, v));
+                    }
+                }
+            }
+        }
+        for (int[] h : topo.houses) {
+            for (int v = 0; v < n; v++) {
+                int[] some = new int[h.length];
+                for (int k = 0; k < h.length; k++) {
+                    some[k] = var(h[k], v);
+                }
+                sat.addClause(some);
+            }
+        }
+        for (int i = 0; i < topo.size; i++) {
+            if (cells[i] != 0) {
+                sat.addClause(var(i, cells[i] - 1));
+            }
+        }
+        return sat;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        SatSolver sat = current;
+        if (sat != null) {
+            sat.interrupt();
+        }
+    }
+
+    @Override
+    public void resume() {
+        cancelled = false;
+    }
+
+    @Override
+    public long count(int[] cells, long limit) {
+        SatSolver sat = encode(cells);
+        current = sat;
+        if (cancelled) {
+            sat.interrupt();
+        }
+        long ct = 0;
+        while (ct < limit && sat.solve()) {
+            ct++;
+            int[] block = new int[topo.size];
+            int n = 0;
+            for (int i = 0; i < topo.size; i++) {
+                for (int v = 0; v < topo.symbols; v++) {
+                    if (sat.modelValue(var(i, v))) {
+                        solution[i] = v + 1;
+                    }
+                }
+                if (cells[i] == 0) {
+                    block[n++] = -var(i, solution[i] - 1);
+                }
+            }
+            if (n == 0 || !sat.addClause(Arrays.copyOf(block, n))) {
+                break;
+            }
+        }
+        nodes += sat.getDecisions();
+        current = null;
+        return ct;
+    }
+
+    /**
+     * Writes the first solution found into out.
+     *
+     * @return false if cells has no solution
+     */
+    public boolean solve(int[] cells, int[] out) {
+        if (count(cells, 1) == 0) {
+            return false;
+        }
+        System.arraycopy(solution, 0, out, 0, topo.size);
+        return true;
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes;
+    }
+}
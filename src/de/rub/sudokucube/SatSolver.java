@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Conflict-driven clause learning SAT solver: two watched literals, VSIDS
+ * with phase saving, first-UIP learning, Luby restarts and deletion of the
+ * less active half of the learnt clauses. Variables are numbered from 1 and
+ * clauses are given in DIMACS style, -v being the negation of v. Internally
+ * literal 2 * (v - 1) stands for v and 2 * (v - 1) + 1 for -v.
+ *
+ * @author Sora Steenvoort
+ */
+public class SatSolver {
+
+    static final int RESTART_UNIT = 100; // conflicts
+    static final double VAR_DECAY = 0.95, CLAUSE_DECAY = 0.999;
+
+    static private class Clause {
+
+        final int[] lits;
+        final boolean learnt;
+        double activity = 0;
+        boolean deleted = false;
+
+        Clause(int[] l, boolean lrn) {
+            lits = l;
+            learnt = lrn;
+        }
+    }
+
+    private int nVars = 0;
+    private boolean ok = true;
+    private final List<Clause> clauses = new ArrayList<>(), learnts = new ArrayList<>();
+    private Clause[][] watches = new Clause[0][];
+    private int[] watchCt = new int[0];
+    private int[] assigns = new int[0]; // -1 unassigned, else 0 or 1 (value of the variable)
+    private int[] level = new int[0];
+    private Clause[] reason = new Clause[0];
+    private boolean[] phase = new boolean[0], seen = new boolean[0];
+    private double[] activity = new double[0];
+    private double varInc = 1, clauseInc = 1;
+    private int[] trail = new int[0], trailLim = new int[0];
+    private int trailTop = 0, levels = 0, qhead = 0;
+    private int[] heap = new int[0], heapIndex = new int[0];
+    private int heapSize = 0;
+    private boolean[] model = new boolean[0];
+    private double maxLearnts;
+    private volatile boolean interrupted = false;
+    long decisions, conflicts, propagations, restarts;
+
+    /**
+     * @return the number of the new variable
+     */
+    public int newVar() {
+        int v = nVars++;
+        if (v == assigns.length) {
+            int n = Math.max(16, 2 * v);
+            assigns = Arrays.copyOf(assigns, n);
+            level = Arrays.copyOf(level, n);
+            reason = Arrays.copyOf(reason, n);
+            phase = Arrays.copyOf(phase, n);
+            seen = Arrays.copyOf(seen, n);
+            activity = Arrays.copyOf(activity, n);
+            trail = Arrays.copyOf(trail, n);
+            trailLim = Arrays.copyOf(trailLim, n + 1);
+            heap = Arrays.copyOf(heap, n);
+            heapIndex = Arrays.copyOf(heapIndex, n);
+            watches = Arrays.copyOf(watches, 2 * n);
+            watchCt = Arrays.copyOf(watchCt, 2 * n);
+        }
+        assigns[v] = -1;
+        heapIndex[v] = -1;
+        watches[2 * v] = new Clause[4];
+        watches[2 * v + 1] = new Clause[4];
+        heapInsert(v);
+        return v + 1;
+    }
+
+    public int numVars() {
+        return nVars;
+    }
+
+    public long getDecisions() {
+        return decisions;
+    }
+
+    public long getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Adds a clause, undoing any assignments above level 0.
+     *
+     * @return false if the formula became unsatisfiable
+     */
+    public boolean addClause(int... dimacs) {
+        cancelUntil(0);
+        if (!ok) {
+            return false;
+        }
+        int[] lits = new int[dimacs.length];
+        int n = 0;
+        for (int d : dimacs) {
+            int l = d > 0 ? 2 * (d - 1) : 2 * (-d - 1) + 1;
+            int v = value(l);
+            if (v == 1) {
+                return true; // satisfied
+            }
+            if (v == -1) {
+                boolean dup = false;
+                for (int k = 0; k < n; k++) {
+                    if (lits[k] == l) {
+                        dup = true;
+                    } else if (lits[k] == (l ^ 1)) {
+                        return true; // tautology
+                    }
+                }
+                if (!dup) {
+                    lits[n++] = l;
+                }
+            }
+        }
+        if (n == 0) {
+            return ok = false;
+        }
+        if (n == 1) {
+            enqueue(lits[0], null);
+            return ok = propagate() == null;
+        }
+        Clause c = new Clause(Arrays.copyOf(lits, n), false);
+        clauses.add(c);
+        attach(c);
+        return true;
+    }
+
+    /**
+     * @return 1 if the literal is true, 0 if false, -1 if unassigned
+     */
+    private int value(int lit) {
+        int a = assigns[lit >> 1];
+        return a == -1 ? -1 : a ^ (lit & 1);
+    }
+
+    private void attach(Clause c) {
+        watch(c.lits[0] ^ 1, c);
+        watch(c.lits[1] ^ 1, c);
+    }
+
+    /**
+     * Registers c to be visited when lit becomes true.
+     */
+    private void watch(int lit, Clause c) {
+        if (watchCt[lit] == watches[lit].length) {
+            watches[lit] = Arrays.copyOf(watches[lit], 2 * watchCt[lit]);
+        }
+        watches[lit][watchCt[lit]++] = c;
+    }
+
+    private void enqueue(int lit, Clause from) {
+        int v = lit >> 1;
+        assigns[v] = (lit & 1) ^ 1;
+        level[v] = levels;
+        reason[v] = from;
+        trail[trailTop++] = lit;
+    }
+
+    /**
+     * @return a conflicting clause, null if there is none
+     */
+    private Clause propagate() {
+        while (qhead < trailTop) {
+            int p = trail[qhead++];
+            int falseLit = p ^ 1;
+            Clause[] ws = watches[p];
+            int n = watchCt[p], i = 0, j = 0;
+            propagations++;
+            while (i < n) {
+                Clause c = ws[i++];
+                if (c.deleted) {
+                    continue;
+                }
+                int[] lits = c.lits;
+                if (lits[0] == falseLit) {
+                    lits[0] = lits[1];
+                    lits[1] = falseLit;
+                }
+                if (value(lits[0]) == 1) {
+                    ws[j++] = c;
+                    continue;
+                }
+                boolean moved = false;
+                for (int k = 2; k < lits.length; k++) {
+                    if (value(lits[k]) != 0) {
+                        lits[1] = lits[k];
+                        lits[k] = falseLit;
+                        watch(lits[1] ^ 1, c);
+                        moved = true;
+                        break;
+                    }
+                }
+                if (moved) {
+                    continue;
+                }
+                ws[j++] = c;
+                if (value(lits[0]) == 0) {
+                    while (i < n) {
+                        ws[j++] = ws[i++];
+                    }
+                    watchCt[p] = j;
+                    qhead = trailTop;
+                    return c;
+                }
+                enqueue(lits[0], c);
+            }
+            watchCt[p] = j;
+        }
+        return null;
+    }
+
+    private void cancelUntil(int lvl) {
+        if (levels > lvl) {
+            for (int t = trailTop - 1; t >= trailLim[lvl]; t--) {
+                int v = trail[t] >> 1;
+                phase[v] = (trail[t] & 1) == 0;
+                assigns[v] = -1;
+                reason[v] = null;
+                if (heapIndex[v] == -1) {
+                    heapInsert(v);
+                }
+            }
+            trailTop = qhead = trailLim[lvl];
+            levels = lvl;
+        }
+    }
+
+    /**
+     * First-UIP conflict analysis.
+     *
+     * @return the learnt clause, the asserting literal first and a literal
+     * of the backtrack level second
+     */
+    private int[] analyze(Clause confl) {
+        int[] out = new int[8];
+        int n = 1, pathC = 0, p = -1, idx = trailTop - 1;
+        do {
+            if (confl.learnt) {
+                bumpClause(confl);
+            }
+            int[] lits = confl.lits;
+            for (int k = p == -1 ? 0 : 1; k < lits.length; k++) {
+                int q = lits[k], v = q >> 1;
+                if (!seen[v] && level[v] > 0) {
+                    bumpVar(v);
+                    seen[v] = true;
+                    if (level[v] >= levels) {
+                        pathC++;
+                    } else {
+                        if (n == out.length) {
+                            out = Arrays.copyOf(out, 2 * n);
+                        }
+                        out[n++] = q;
+                    }
+                }
+            }
+            while (!seen[trail[idx] >> 1]) {
+                idx--;
+            }
+            p = trail[idx--];
+            confl = reason[p >> 1];
+            seen[p >> 1] = false;
+            pathC--;
+        } while (pathC > 0);
+        out[0] = p ^ 1;
+        int max = 1;
+        for (int k = 1; k < n; k++) {
+            seen[out[k] >> 1] = false;
+            if (level[out[k] >> 1] > level[out[max] >> 1]) {
+                max = k;
+            }
+        }
+        if (n > 1) {
+            int t = out[1];
+            out[1] = out[max];
+            out[max] = t;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private void bumpVar(int v) {
+        if ((activity[v] += varInc) > 1e100) {
+            for (int k = 0; k < nVars; k++) {
+                activity[k] *= 1e-100;
+            }
+            varInc *= 1e-100;
+        }
+        if (heapIndex[v] != -1) {
+            heapUp(heapIndex[v]);
+        }
+    }
+
+    private void bumpClause(Clause c) {
+        if ((c.activity += clauseInc) > 1e20) {
+            for (Clause l : learnts) {
+                l.activity *= 1e-20;
+            }
+            clauseInc *= 1e-20;
+        }
+    }
+
+    /**
+     * Deletes the less active half of the learnt clauses, keeping binary
+     * clauses and reasons of current assignments.
+     */
+    private void reduceLearnts() {
+        Collections.sort(learnts, new Comparator<Clause>() {
+            @Override
+            public int compare(Clause a, Clause b) {
+                return Double.compare(a.activity, b.activity);
+            }
+        });
+        List<Clause> kept = new ArrayList<>();
+        for (int k = 0; k < learnts.size(); k++) {
+            Clause c = learnts.get(k);
+            boolean locked = reason[c.lits[0] >> 1] == c && value(c.lits[0]) == 1;
+            if (k < learnts.size() / 2 && c.lits.length > 2 && !locked) {
+                c.deleted = true;
+            } else {
+                kept.add(c);
+            }
+        }
+        learnts.clear();
+        learnts.addAll(kept);
+    }
+
+    /**
+     * Makes a running or the next solve() give up, may be called from any
+     * thread.
+     */
+    public void interrupt() {
+        interrupted = true;
+    }
+
+    public boolean solve() {
+        return solve(-1) == Boolean.TRUE;
+    }
+
+    /**
+     * @param conflictBudget conflicts allowed, negative for no limit
+     * @return TRUE or FALSE, null if the budget ran out
+     */
+    public Boolean solve(long conflictBudget) {
+        if (!ok) {
+            return Boolean.FALSE;
+        }
+        maxLearnts = Math.max(clauses.size() / 3.0, 1000);
+        long stop = conflictBudget < 0 ? Long.MAX_VALUE : conflicts + conflictBudget;
+        for (long run = 1;; run++) {
+            long limit = RESTART_UNIT * SudokuSolver.luby(run);
+            Boolean r = search(limit, stop);
+            if (r != null || conflicts >= stop || interrupted) {
+                cancelUntil(0);
+                return r;
+            }
+            restarts++;
+        }
+    }
+
+    private Boolean search(long conflictLimit, long stop) {
+        long ct = 0;
+        while (true) {
+            Clause confl = propagate();
+            if (confl != null) {
+                conflicts++;
+                ct++;
+                if (levels == 0) {
+                    ok = false;
+                    return Boolean.FALSE;
+                }
+                int[] learnt = analyze(confl);
+                int bt = learnt.length > 1 ? level[learnt[1] >> 1] : 0;
+                cancelUntil(bt);
+                if (learnt.length == 1) {
+                    enqueue(learnt[0], null);
+                } else {
+                    Clause c = new Clause(learnt, true);
+                    learnts.add(c);
+                    attach(c);
+                    bumpClause(c);
+                    enqueue(learnt[0], c);
+                }
+                varInc /= VAR_DECAY;
+                clauseInc /= CLAUSE_DECAY;
+            } else {
+                if (ct >= conflictLimit || conflicts >= stop || interrupted) {
+                    cancelUntil(0);
+                    return null;
+                }
+                if (learnts.size() - trailTop >= maxLearnts) {
+                    reduceLearnts();
+                    maxLearnts *= 1.1;
+                }
+                int v = -1;
+                while (heapSize > 0) {
+                    int w = heapRemoveMax();
+                    if (assigns[w] == -1) {
+                        v = w;
+                        break;
+                    }
+                }
+                if (v == -1) {
+                    if (model.length < nVars) {
+                        model = new boolean[nVars];
+                    }
+                    for (int k = 0; k < nVars; k++) {
+                        model[k] = assigns[k] == 1;
+                    }
+                    return Boolean.TRUE;
+                }
+                decisions++;
+                trailLim[levels++] = trailTop;
+                enqueue(2 * v + (phase[v] ? 0 : 1), null);
+            }
+        }
+    }
+
+    /**
+     * @return the value of variable var in the last model found
+     */
+    public boolean modelValue(int var) {
+        return model[var - 1];
+    }
+
+    // binary max heap on activity
+    private void heapInsert(int v) {
+        heap[heapSize] = v;
+        heapIndex[v] = heapSize;
+        heapUp(heapSize++);
+    }
+
+    private int heapRemoveMax() {
+        int v = heap[0];
+        heapIndex[v] = -1;
+        if (--heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapIndex[heap[0]] = 0;
+            heapDown(0);
+        }
+        return v;
+    }
+
+    private void heapUp(int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (activity[heap[parent]] >= activity[v]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heapIndex[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        heapIndex[v] = i;
+    }
+
+    private void heapDown(int i) {
+        int v = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && activity[heap[child + 1]] > activity[heap[child]]) {
+                child++;
+            }
+            if (activity[heap[child]] <= activity[v]) {
+                break;
+            }
+            heap[i] = heap[child];
+            heapIndex[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = v;
+        heapIndex[v] = i;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.Random;
+
+/**
+ * Estimates the size of the SudokuSolver search tree of a board with Knuth's
+ * method: a probe walks from the root to a leaf, choosing uniformly among
+ * the children that survive propagation, and the products of the branching
+ * factors along the path are unbiased estimates of the number of nodes on
+ * each level. The tree is the one of an exhaustive count, so it bounds the
+ * work of count() with a limit from above.
+ *
+ * @author Sora Steenvoort
+ */
+public class SearchEstimator {
+
+    static public class Estimate {
+
+        /**
+         * mean over the probes of the estimated search nodes and solutions
+         */
+        public final double nodes, solutions;
+        /**
+         * standard error of nodes divided by nodes
+         */
+        public final double relativeError;
+        /**
+         * estimated assignments of an exhaustive count, times the time per
+         * assignment measured while probing
+         */
+        public final double nanos;
+
+        Estimate(double n, double s, double e, double t) {
+            nodes = n;
+            solutions = s;
+            relativeError = e;
+            nanos = t;
+        }
+
+        /**
+         * @return the expected time of an exhaustive count
+         */
+        public long expectedMillis() {
+            return (long) (nanos / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3g nodes (+-%.0f%%), %.3g solutions, %d ms", nodes,
+                    100 * relativeError, solutions, expectedMillis());
+        }
+    }
+
+    final SudokuTopology topo;
+    private final SudokuSolver solver;
+    private final int[] cur, next;
+    private final Random rnd;
+
+    public SearchEstimator(SudokuTopology topology, Random random) {
+        topo = topology;
+        solver = new SudokuSolver(topo);
+        cur = new int[topo.size];
+        next = new int[topo.size];
+        rnd = random;
+    }
+
+    /**
+     * @param probes number of random paths, the error shrinks with its root
+     */
+    public Estimate estimate(int[] cells, int probes) {
+        double sum = 0, sumSq = 0, sols = 0, work = 0;
+        long assigns = 0;
+        long t0 = System.nanoTime();
+        for (int k = 0; k < probes; k++) {
+            double nodes = 0, weight = 1;
+            if (solver.load(cells, cur)) {
+                while (true) {
+                    nodes += weight;
+                    int cell = solver.selectCell(cur);
+                    if (cell == -1) {
+                        sols += weight;
+                        break;
+                    }
+                    // children surviving propagation, one of them chosen at random
+                    int viable = 0, chosen = 0;
+                    work += weight * Integer.bitCount(cur[cell]);
+                    assigns += Integer.bitCount(cur[cell]) + 1;
+                    for (int m = cur[cell]; m != 0; m &= m - 1) {
+                        System.arraycopy(cur, 0, next, 0, topo.size);
+                        if (solver.assign(next, cell, m & -m) && rnd.nextInt(++viable) == 0) {
+                            chosen = m & -m;
+                        }
+                    }
+                    if (viable == 0) {
+                        break;
+                    }
+                    weight *= viable;
+                    solver.assign(cur, cell, chosen);
+                }
+            }
+            sum += nodes;
+            sumSq += nodes * nodes;
+        }
+        double mean = sum / probes;
+        double var = Math.max(0, sumSq / probes - mean * mean);
+        return new Estimate(mean, sols / probes,
+                mean == 0 ? 0 : probes > 1 ? Math.sqrt(var / (probes - 1)) / mean : Double.POSITIVE_INFINITY,
+                work / probes * (System.nanoTime() - t0) / Math.max(1, assigns));
+    }
+}
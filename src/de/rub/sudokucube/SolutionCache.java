@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of solutions, keyed by the class and the given cells of
+ * the puzzle. Equivalent puzzles do not share an entry: computing a
+ * CanonicalForm takes milliseconds, about a hundred times as long as
+ * SudokuSolver takes to solve a puzzle of any variant, so a canonical key
+ * would make every lookup slower than a miss.
+ *
+ * @author Sora Steenvoort
+ */
+public class SolutionCache {
+
+    static final int MAGIC = 0x53534f4c; // "SSOL"
+    static final int VERSION = 1;
+    static final int DEFAULT_CAPACITY = 4096;
+
+    static private SolutionCache shared = null;
+
+    static private final class Key {
+
+        final SudokuTopology topo;
+        final int[] cells;
+        final int hash;
+
+        Key(SudokuTopology topology, int[] c) {
+            topo = topology;
+            cells = c;
+            hash = topo.cls.hashCode() * 31 + Arrays.hashCode(c);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return topo == k.topo && Arrays.equals(cells, k.cells);
+        }
+    }
+
+    private final LinkedHashMap<Key, int[]> entries;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    public SolutionCache(final int capacity) {
+        entries = new LinkedHashMap<Key, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * The cache used by the user interface. If the system property
+     * sudokucube.solutionCache names a file, the cache is read from it on
+     * first use and written back when the virtual machine exits.
+     */
+    static public synchronized SolutionCache shared() {
+        if (shared == null) {
+            shared = new SolutionCache(DEFAULT_CAPACITY);
+            String path = System.getProperty("sudokucube.solutionCache");
+            if (path != null) {
+                final File file = new File(path);
+                if (file.exists()) {
+                    try {
+                        shared.load(file);
+                    } catch (IOException e) {
+                        System.err.println(e);
+                    }
+                }
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            shared.save(file);
+                        } catch (IOException e) {
+                            System.err.println(e);
+                        }
+                    }
+                });
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return a solution of the given cells of puz (user entries are ignored),
+     * null if there is none
+     */
+    public Sudoku solve(Sudoku puz) {
+        Sudoku s = puz.sanitize();
+        SudokuTopology topo = SudokuTopology.of(s);
+        Key key = new Key(topo, topo.encode(s));
+        int[] sln;
+        synchronized (this) {
+            sln = entries.get(key);
+        }
+        if (sln != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            sln = new int[topo.size()];
+            if (!new SudokuSolver(topo).solve(key.cells, sln)) {
+                return null;
+            }
+            synchronized (this) {
+                entries.put(key, sln);
+            }
+        }
+        return topo.decode(sln);
+    }
+
+    /**
+     * Stores a known solution, e.g. of a generated puzzle.
+     */
+    public void put(Sudoku puz, Sudoku sln) {
+        Sudoku s = puz.sanitize();
+        SudokuTopology topo = SudokuTopology.of(s);
+        Key key = new Key(topo, topo.encode(s));
+        int[] cells = topo.encode(sln);
+        synchronized (this) {
+            entries.put(key, cells);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SolutionCache: " + size() + " entries, " + getHits() + " hits, " + getMisses() + " misses";
+    }
+
+    public synchronized void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<Key, int[]> e : entries.entrySet()) {
+                out.writeUTF(e.getKey().topo.cls.getName());
+                for (int c : e.getKey().cells) {
+                    out.writeByte(c);
+                }
+                for (int c : e.getValue()) {
+                    out.writeByte(c);
+                }
+            }
+        }
+    }
+
+    public synchronized void load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException(file + " is not a solution cache!");
+            }
+            int n = in.readInt();
+            for (int k = 0; k < n; k++) {
+                SudokuTopology topo;
+                try {
+                    topo = SudokuTopology.of(Class.forName(in.readUTF()));
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+                int[] puz = new int[topo.size()];
+                int[] sln = new int[topo.size()];
+                for (int i = 0; i < puz.length; i++) {
+                    puz[i] = in.readUnsignedByte();
+                }
+                for (int i = 0; i < sln.length; i++) {
+                    sln[i] = in.readUnsignedByte();
+                }
+                entries.put(new Key(topo, puz), sln);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+/**
+ * A search engine counting the solutions of cells indexed as in the
+ * SudokuTopology, 0 meaning empty.
+ *
+ * @author Sora Steenvoort
+ */
+public interface SolutionCounter {
+
+    /**
+     * Counts the solutions of cells, stopping once limit is reached.
+     */
+    long count(int[] cells, long limit);
+
+    /**
+     * @return the search nodes visited so far
+     */
+    long getNodes();
+
+    /**
+     * Makes a running count() return soon, its result being meaningless, as
+     * well as every count() started before the next resume(). May be called
+     * from any thread.
+     */
+    void cancel();
+
+    /**
+     * Lets count() run to the end again after cancel(). Whoever hands a
+     * count() to another thread calls this before doing so, so that a
+     * cancel() coming before that thread starts is not lost.
+     */
+    void resume();
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Solving without allocations for one Sudoku class: all scratch space is
+ * allocated by the constructor and results go to buffers of the caller. A
+ * session belongs to the thread that created it.
+ *
+ * @author Sora Steenvoort
+ */
+public class SolverSession {
+
+    static final private java.lang.management.ThreadMXBean MX = ManagementFactory.getThreadMXBean();
+
+    final SudokuTopology topo;
+    private final Thread owner;
+    private final SudokuSolver solver;
+    private final BatchSolver batch;
+    private final int[] cells, solution;
+
+    public SolverSession(SudokuTopology topology) {
+        topo = topology;
+        owner = Thread.currentThread();
+        solver = new SudokuSolver(topo);
+        batch = new BatchSolver(topo);
+        cells = new int[topo.size];
+        solution = new int[topo.size];
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("SolverSession used by " + Thread.currentThread().getName()
+                    + ", owned by " + owner.getName());
+        }
+    }
+
+    /**
+     * Writes the first solution found into out.
+     *
+     * @return false if puzzle has no solution
+     */
+    public boolean solveInto(int[] puzzle, int[] out) {
+        checkThread();
+        return solver.solve(puzzle, out);
+    }
+
+    /**
+     * Sets the values of out, a Sudoku of the same class, to the first
+     * solution of puzzle found.
+     *
+     * @return false if puzzle has no solution, out is unchanged then
+     */
+    public boolean solveInto(Sudoku puzzle, Sudoku out) {
+        checkThread();
+        topo.encode(puzzle, cells);
+        if (!solver.solve(cells, solution)) {
+            return false;
+        }
+        for (int i = 0; i < topo.size; i++) {
+            out.setValue(topo.nodes[i], topo.palette[solution[i] - 1]);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of solutions of puzzle, at most limit
+     */
+    public long count(int[] puzzle, long limit) {
+        checkThread();
+        return solver.count(puzzle, limit);
+    }
+
+    /**
+     * Solves puzzles[from .. from + n) with the BatchSolver, see
+     * BatchSolver.solveInto.
+     */
+    public void solveInto(int[][] puzzles, int from, int n, int[][] out, boolean[] ok) {
+        checkThread();
+        batch.solveInto(puzzles, from, n, out, ok);
+    }
+
+    /**
+     * Counts puzzles[from .. from + n) with the BatchSolver, see
+     * BatchSolver.countInto.
+     */
+    public void countInto(int[][] puzzles, int from, int n, long limit, long[] counts) {
+        checkThread();
+        batch.countInto(puzzles, from, n, limit, counts);
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, -1 if the
+     * JVM does not tell
+     */
+    static long allocatedBytes() {
+        if (MX instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) MX;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Measures the steady-state allocations of every method on random images
+     * of generated minimal puzzles.
+     *
+     * @param args number of boards per variant (default 4096)
+     */
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        Random rnd = new Random(n);
+        for (String cls : SudokuBench.CLASSES) {
+            SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+            SudokuSymmetry sym = SudokuSymmetry.of(topo.cls);
+            List<int[]> seeds = SudokuBench.puzzles(cls, 32);
+            int[][] puzzles = new int[n][];
+            for (int k = 0; k < n; k++) {
+                puzzles[k] = sym.apply(seeds.get(k % seeds.size()), sym.randomElement(rnd),
+                        sym.randomRelabeling(rnd), new int[topo.size]);
+            }
+            int[][] out = new int[n][topo.size];
+            boolean[] ok = new boolean[n];
+            long[] counts = new long[n];
+            Sudoku puzzle = topo.decode(puzzles[0]), sln = puzzle.copy();
+            SolverSession session = new SolverSession(topo);
+
+            long[] bytes = new long[5];
+            long[] nanos = new long[5];
+            for (int r = 0; r < 3; r++) { // the last round is measured
+                long b = allocatedBytes(), t = System.nanoTime();
+                for (int k = 0; k < n; k++) {
+                    session.solveInto(puzzles[k], out[k]);
+                }
+                bytes[0] = allocatedBytes() - b;
+                nanos[0] = System.nanoTime() - t;
+                b = allocatedBytes();
+                t = System.nanoTime();
+                for (int k = 0; k < n; k++) {
+                    counts[k] = session.count(puzzles[k], 2);
+                }
+                bytes[1] = allocatedBytes() - b;
+                nanos[1] = System.nanoTime() - t;
+                b = allocatedBytes();
+                t = System.nanoTime();
+                session.solveInto(puzzles, 0, n, out, ok);
+                bytes[2] = allocatedBytes() - b;
+                nanos[2] = System.nanoTime() - t;
+                b = allocatedBytes();
+                t = System.nanoTime();
+                session.countInto(puzzles, 0, n, 2, counts);
+                bytes[3] = allocatedBytes() - b;
+                nanos[3] = System.nanoTime() - t;
+                b = allocatedBytes();
+                t = System.nanoTime();
+                for (int k = 0; k < n; k++) {
+                    session.solveInto(puzzle, sln);
+                }
+                bytes[4] = allocatedBytes() - b;
+                nanos[4] = System.nanoTime() - t;
+            }
+            String[] names = {"solveInto(int[])", "count(int[])", "solveInto(int[][])",
+                "countInto(int[][])", "solveInto(Sudoku)"};
+            for (int m = 0; m < names.length; m++) {
+                System.out.printf("%-16s %-20s %8.2f bytes/board %10.0f boards/s%n", topo.cls.getSimpleName(),
+                        names[m], bytes[m] / (double) n, n / (nanos[m] / 1e9));
+            }
+        }
+    }
+}
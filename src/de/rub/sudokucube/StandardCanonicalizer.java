@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Canonical form of StandardSudoku boards, the same as the one of
+ * SudokuSymmetry.canonicalize, built row by row. A state is a transposition,
+ * a column permutation, the source rows of the rows built so far and the
+ * relabeling they imply. The first row is searched over the transpositions,
+ * source rows and column permutations, choosing the columns one at a time
+ * and cutting a partial permutation at its first cell greater than the best
+ * row. Every later level extends the states by the rows their bands still
+ * allow and keeps only those whose new row is the smallest. On generated
+ * puzzles about 90 states survive the first row and one or two the third.
+ *
+ * @author Sora Steenvoort
+ */
+class StandardCanonicalizer {
+
+    static final int N = 9;
+    static final int EMPTY = N + 1;
+    static final int LIMIT = 2 * 1296 * N; // states kept before giving up
+
+    static private class State {
+
+        final int t;       // 1 if the board is transposed first
+        final int[] cols;  // source column of every column
+        final int[] rows = new int[N]; // source rows of the rows built
+        final int[] relabel = new int[N + 1]; // 0 for values not seen yet
+        int next = 1, used = 0; // next label, mask of the source rows used
+
+        State(int t, int[] cols, int row, int[] labels, int nextLabel) {
+            this.t = t;
+            this.cols = cols;
+            rows[0] = row;
+            System.arraycopy(labels, 0, relabel, 0, N + 1);
+            next = nextLabel;
+            used = 1 << row;
+        }
+
+        State(State s, int row, int level, int[] labels, int nextLabel) {
+            t = s.t;
+            cols = s.cols;
+            System.arraycopy(s.rows, 0, rows, 0, level);
+            rows[level] = row;
+            System.arraycopy(labels, 0, relabel, 0, N + 1);
+            next = nextLabel;
+            used = s.used | 1 << row;
+        }
+    }
+
+    /**
+     * Search of the first row of one call, kept apart as canonicalize() runs
+     * on many threads.
+     */
+    static private class FirstRow {
+
+        final int[] cols = new int[N];
+        final int[] labels = new int[N + 1];
+        final int[] cur = new int[N];
+        final int[] best = new int[N];
+        final List<State> kept = new ArrayList<>();
+        int[] src;
+        int t, row, next;
+        int below = N; // first column where cur is smaller than best
+        boolean overflow = false;
+
+        FirstRow() {
+            best[0] = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Chooses the source column of column c among the unused ones its
+         * stack still allows. A new best row resets below, as every prefix
+         * on the path then equals it.
+         */
+        void search(int c, int usedCols) {
+            if (c == N) {
+                if (below < N) {
+                    System.arraycopy(cur, 0, best, 0, N);
+                    kept.clear();
+                    below = N;
+                }
+                if (kept.size() == LIMIT) {
+                    overflow = true;
+                    return;
+                }
+                kept.add(new State(t, cols.clone(), row, labels, next));
+                return;
+            }
+            for (int col = 0; col < N && !overflow; col++) {
+                if ((usedCols & 1 << col) != 0
+                        || (c % 3 != 0 && col / 3 != cols[c - 1] / 3)
+                        || (c % 3 == 0 && (usedCols >> (col / 3 * 3) & 7) != 0)) {
+                    continue;
+                }
+                int v = src[col];
+                boolean fresh = false;
+                if (v == 0) {
+                    v = EMPTY;
+                } else {
+                    if (labels[v] == 0) {
+                        labels[v] = next++;
+                        fresh = true;
+                    }
+                    v = labels[v];
+                }
+                if (below < c || v <= best[c]) {
+                    if (below >= c && v < best[c]) {
+                        below = c;
+                    }
+                    cols[c] = col;
+                    cur[c] = v;
+                    search(c + 1, usedCols | 1 << col);
+                    if (below == c) {
+                        below = N;
+                    }
+                }
+                if (fresh) {
+                    labels[src[col]] = 0;
+                    next--;
+                }
+            }
+        }
+    }
+
+    final SudokuTopology topo;
+
+    StandardCanonicalizer(SudokuTopology topology) {
+        if (topology.size != N * N || topology.symbols != N) {
+            throw new IllegalArgumentException(topology.cls.getName() + " is no 9x9 Sudoku");
+        }
+        topo = topology;
+    }
+
+    /**
+     * @return the canonical form of cells, null if the board has so many
+     * symmetries that more than LIMIT states tie, e.g. when it is nearly
+     * empty
+     */
+    CanonicalForm canonicalize(int[] cells) {
+        int[][][] boards = new int[2][N][N];
+        for (int r = 0; r < N; r++) {
+            for (int c = 0; c < N; c++) {
+                boards[0][r][c] = cells[r * N + c];
+                boards[1][c][r] = cells[r * N + c];
+            }
+        }
+        FirstRow first = new FirstRow();
+        for (first.t = 0; first.t < 2; first.t++) {
+            for (first.row = 0; first.row < N; first.row++) {
+                first.src = boards[first.t][first.row];
+                first.next = 1;
+                first.search(0, 0);
+                if (first.overflow) {
+                    return null;
+                }
+            }
+        }
+        List<State> states = first.kept;
+        int[] best = new int[N], cur = new int[N], labels = new int[N + 1];
+        for (int level = 1; level < N; level++) {
+            List<State> kept = new ArrayList<>();
+            best[0] = Integer.MAX_VALUE;
+            for (State s : states) {
+                int[][] board = boards[s.t];
+                for (int row = 0; row < N; row++) {
+                    if ((s.used & 1 << row) != 0
+                            || (level % 3 != 0 && row / 3 != s.rows[level - 1] / 3)
+                            || (level % 3 == 0 && (s.used >> (row / 3 * 3) & 7) != 0)) {
+                        continue;
+                    }
+                    int cmp = row(board[row], s, cur, labels, best);
+                    if (cmp > 0) {
+                        continue;
+                    }
+                    if (cmp < 0) {
+                        System.arraycopy(cur, 0, best, 0, N);
+                        kept.clear();
+                    }
+                    if (kept.size() == LIMIT) {
+                        return null;
+                    }
+                    int next = s.next;
+                    for (int v : cur) {
+                        next = Math.max(next, v == EMPTY ? 0 : v + 1);
+                    }
+                    kept.add(new State(s, row, level, labels, next));
+                }
+            }
+            states = kept;
+        }
+        return form(cells, states.get(0));
+    }
+
+    /**
+     * Writes the row of state s taken from the source row src into cur and
+     * its relabeling into labels, stopping at the first cell greater than
+     * in best.
+     *
+     * @return the sign of the comparison of cur with best
+     */
+    static private int row(int[] src, State s, int[] cur, int[] labels, int[] best) {
+        System.arraycopy(s.relabel, 0, labels, 0, N + 1);
+        int next = s.next;
+        boolean less = false;
+        for (int c = 0; c < N; c++) {
+            int v = src[s.cols[c]];
+            if (v == 0) {
+                v = EMPTY;
+            } else {
+                if (labels[v] == 0) {
+                    labels[v] = next++;
+                }
+                v = labels[v];
+            }
+            if (!less) {
+                if (v > best[c]) {
+                    return 1;
+                }
+                less = v < best[c];
+            }
+            cur[c] = v;
+        }
+        return less ? -1 : 0;
+    }
+
+    /**
+     * @return the CanonicalForm of the group element and relabeling of s
+     */
+    private CanonicalForm form(int[] cells, State s) {
+        int[] rowOf = new int[N], colOf = new int[N];
+        for (int k = 0; k < N; k++) {
+            rowOf[s.rows[k]] = k;
+            colOf[s.cols[k]] = k;
+        }
+        int[] perm = new int[N * N];
+        for (int a = 0; a < N; a++) {
+            for (int b = 0; b < N; b++) {
+                perm[a * N + b] = s.t == 0 ? rowOf[a] * N + colOf[b] : rowOf[b] * N + colOf[a];
+            }
+        }
+        // unused values keep their order, as in SudokuSymmetry.canonicalize
+        int[] relabel = new int[N + 1];
+        System.arraycopy(s.relabel, 0, relabel, 0, N + 1);
+        int next = s.next;
+        for (int v = 1; v <= N; v++) {
+            if (relabel[v] == 0) {
+                relabel[v] = next++;
+            }
+        }
+        int[] canonical = new int[N * N];
+        for (int i = 0; i < N * N; i++) {
+            canonical[perm[i]] = relabel[cells[i]];
+        }
+        return new CanonicalForm(topo, canonical, perm, relabel);
+    }
+}
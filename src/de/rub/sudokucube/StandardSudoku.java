@@ -122,6 +122,55 @@ public class StandardSudoku extends Sudoku {
         return EMPTY;
     }
 
+    /**
+     * @return the map permuting the rows by rows[i], or the columns if
+     * transpose is set
+     */
+    static private Map<Node, Node> lineMap(int[] rows, boolean transpose) {
+        Map<Node, Node> m = new HashMap<>();
+        for (int i = 0; i < 9; i++) {
+            for (int j = 0; j < 9; j++) {
+                if (transpose) {
+                    m.put(vert[i][j], vert[i][rows[j]]);
+                } else {
+                    m.put(vert[i][j], vert[rows[i]][j]);
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Column permutations, row permutations and transposition, the first two
+     * generated by swapping and cycling the first lines of a band and swapping
+     * and cycling the bands. The column permutations come first as they split
+     * the first row most finely for SudokuSymmetry.canonicalize.
+     */
+    @Override
+    List<List<Map<Node, Node>>> getSymmetryFactors() {
+        Map<Node, Node> transpose = new HashMap<>();
+        for (int i = 0; i < 9; i++) {
+            for (int j = 0; j < 9; j++) {
+                transpose.put(vert[i][j], vert[j][i]);
+            }
+        }
+        int[][] lineGens = {
+            {1, 0, 2, 3, 4, 5, 6, 7, 8},
+            {1, 2, 0, 3, 4, 5, 6, 7, 8},
+            {3, 4, 5, 0, 1, 2, 6, 7, 8},
+            {3, 4, 5, 6, 7, 8, 0, 1, 2}};
+        List<List<Map<Node, Node>>> factors = new ArrayList<>();
+        for (boolean cols : new boolean[]{true, false}) {
+            List<Map<Node, Node>> lines = new ArrayList<>();
+            for (int[] g : lineGens) {
+                lines.add(lineMap(g, cols));
+            }
+            factors.add(lines);
+        }
+        factors.add(Arrays.asList(transpose));
+        return factors;
+    }
+
     static final char[] palette;
     static final Map<Node, HashSet<Node>> adjacency; // map of sets
     static final Map<Integer, Character> keyBindings;
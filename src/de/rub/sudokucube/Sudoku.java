@@ -13,6 +13,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 /**
  *
@@ -52,6 +53,12 @@ public abstract class Sudoku {
 
     abstract Map<Integer, Character> getKeyBindings();
 
+    /**
+     * The symmetry group of the adjacency (without palette permutations) is
+     * the product of the subgroups generated by each of the returned lists.
+     */
+    abstract List<List<Map<Node, Node>>> getSymmetryFactors();
+
     abstract public char getEmpty();
     
     Map<Node, Character> values;
@@ -126,6 +133,10 @@ public abstract class Sudoku {
     static public Sudoku randomPuzzle(String className) throws Exception {
         Class cls = Class.forName(className);
         Sudoku s = (Sudoku) (cls.newInstance());
+        Sudoku grid = s.randomCatalogGrid();
+        if (grid != null) {
+            return grid;
+        }
         char[] palette = (char[]) (cls.getDeclaredField("palette").get(null));
         char empty = (char) (cls.getDeclaredField("EMPTY").get(null));
         s.randomSeed();
@@ -165,6 +176,26 @@ public abstract class Sudoku {
         return sln.get(0);
     }
 
+    /**
+     * @return a random solution grid drawn from a shipped GridCatalog, null if
+     * there is none for this class
+     */
+    Sudoku randomCatalogGrid() {
+        GridCatalog catalog = GridCatalog.forClass(getClass());
+        if (catalog == null) {
+            return null;
+        }
+        return catalog.randomGrid(new Random());
+    }
+
+    /**
+     * @return the representative of this board under the symmetry group and
+     * palette relabelings
+     */
+    public CanonicalForm canonicalForm() {
+        return SudokuSymmetry.of(getClass()).canonicalize(this);
+    }
+
     public abstract void randomSeed();
 
     public abstract Sudoku copy();
@@ -30,6 +30,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
 /**
  *
@@ -131,6 +132,45 @@ public class Sudoku3DHyper extends Sudoku {
         return EMPTY;
     }
 
+    /**
+     * Each cube has the axes of a Sudoku3DSimple cube. The shared rows tie
+     * axis a of both cubes together and keep the faces in place, so only the
+     * layers may be permuted, axis a in both cubes at once. Swapping the cubes
+     * exchanges axes b and c, which takes the linked right face of the first
+     * cube to the left face of the second one. The layers of axis b of the
+     * first cube come first as they split the first row most finely for
+     * SudokuSymmetry.canonicalize.
+     */
+    @Override
+    List<List<Map<Node, Node>>> getSymmetryFactors() {
+        List<List<Map<Node, Node>>> factors = new ArrayList<>();
+        for (int cube = 0; cube < 16; cube += 8) {
+            for (int x = 1; x < 3; x++) {
+                List<Map<Node, Node>> layer = new ArrayList<>();
+                for (int[] g : Sudoku3DSimple.AXIS_VALUE_GENERATORS) {
+                    int[][] values = Sudoku3DSimple.VALUES.clone();
+                    values[x] = g;
+                    layer.add(Sudoku3DSimple.cubeMap(vert, cube, cube, Sudoku3DSimple.AXES, values));
+                }
+                factors.add(layer);
+            }
+        }
+        List<Map<Node, Node>> layerA = new ArrayList<>();
+        for (int[] g : Sudoku3DSimple.AXIS_VALUE_GENERATORS) {
+            int[][] values = Sudoku3DSimple.VALUES.clone();
+            values[0] = g;
+            Map<Node, Node> m = Sudoku3DSimple.cubeMap(vert, 0, 0, Sudoku3DSimple.AXES, values);
+            m.putAll(Sudoku3DSimple.cubeMap(vert, 8, 8, Sudoku3DSimple.AXES, values));
+            layerA.add(m);
+        }
+        factors.add(layerA);
+        int[] swap = {0, 2, 1};
+        Map<Node, Node> cubeSwap = Sudoku3DSimple.cubeMap(vert, 0, 8, swap, Sudoku3DSimple.VALUES);
+        cubeSwap.putAll(Sudoku3DSimple.cubeMap(vert, 8, 0, swap, Sudoku3DSimple.VALUES));
+        factors.add(Arrays.asList(cubeSwap));
+        return factors;
+    }
+
     static final char[] palette;
     static final Map<Node, HashSet<Node>> adjacency; // map of sets
     static final Map<Integer, Character> keyBindings;
@@ -494,6 +534,70 @@ public class Sudoku3DHyper extends Sudoku {
         return -1;
     }
 
+    /**
+     * Both cubes are Sudoku3DSimple grids. The shared rows force the left
+     * face of the second cube to repeat the row sets of the left face of the
+     * first one, so a second random catalog grid is relabeled to match them.
+     */
+    @Override
+    Sudoku randomCatalogGrid() {
+        GridCatalog catalog = GridCatalog.forClass(Sudoku3DSimple.class);
+        if (catalog == null) {
+            return null;
+        }
+        Random rnd = new Random();
+        SudokuTopology t = SudokuTopology.of(Sudoku3DSimple.class);
+        int[] c0 = catalog.randomGrid(rnd, new int[t.size()]);
+        int[] c1 = new int[t.size()];
+        int s0 = leftRowSet(t, c0, 0), s2 = leftRowSet(t, c0, 2);
+        int t0, t2;
+        do {
+            catalog.randomGrid(rnd, c1);
+            t0 = leftRowSet(t, c1, 0);
+            t2 = leftRowSet(t, c1, 2);
+        } while (Integer.bitCount(t0 & t2) != Integer.bitCount(s0 & s2));
+        int[] relabel = new int[palette.length + 1];
+        int[][] parts = {
+            {t0 & t2, s0 & s2},
+            {t0 & ~t2, s0 & ~s2},
+            {~t0 & t2, ~s0 & s2},
+            {~t0 & ~t2, ~s0 & ~s2}};
+        for (int[] part : parts) {
+            List<Integer> from = new ArrayList<>(), to = new ArrayList<>();
+            for (int v = 1; v <= palette.length; v++) {
+                if ((part[0] & (1 << v)) != 0) {
+                    from.add(v);
+                }
+                if ((part[1] & (1 << v)) != 0) {
+                    to.add(v);
+                }
+            }
+            Collections.shuffle(to, rnd);
+            for (int k = 0; k < from.size(); k++) {
+                relabel[from.get(k)] = to.get(k);
+            }
+        }
+        Sudoku3DHyper s = new Sudoku3DHyper();
+        for (int k = 0; k < t.size(); k++) {
+            Node2D n = (Node2D) t.node(k);
+            s.setValue(vert[n.getI()][n.getJ()], palette[c0[k] - 1]);
+            s.setValue(vert[n.getI()][n.getJ() + 8], palette[relabel[c1[k]] - 1]);
+        }
+        return s;
+    }
+
+    /**
+     * @return the values in row i of the left face of a Sudoku3DSimple grid,
+     * as bit set
+     */
+    static private int leftRowSet(SudokuTopology t, int[] cells, int i) {
+        int set = 0;
+        for (int j = 0; j < 4; j++) {
+            set |= 1 << cells[t.indexOf(t.template.getNodeByNumber(i, j))];
+        }
+        return set;
+    }
+
     @Override
     public void randomSeed() {
         char[][] seed2 = new char[8][16];
@@ -129,6 +129,89 @@ public class Sudoku3DSimple extends Sudoku {
         return EMPTY;
     }
 
+    /**
+     * The three faces of the cube span the axes a,b (rows and columns 0-3),
+     * a,c (rows 0-3, columns 4-7) and c,b (rows 4-7, columns 0-3). Every line
+     * fixes one axis value, every subgrid one half of an axis.
+     *
+     * @return {a, b, c} with -1 for the axis the node's face does not span
+     */
+    static int[] cubeCoords(int i, int j) {
+        if (i < 4 && j < 4) {
+            return new int[]{i, j, -1};
+        } else if (i < 4) {
+            return new int[]{i, -1, j - 4};
+        }
+        return new int[]{-1, j, i - 4};
+    }
+
+    /**
+     * @return {i, j} of the node with the given cube coordinates
+     */
+    static int[] cubeIndex(int[] abc) {
+        if (abc[2] == -1) {
+            return new int[]{abc[0], abc[1]};
+        } else if (abc[1] == -1) {
+            return new int[]{abc[0], abc[2] + 4};
+        }
+        return new int[]{abc[2] + 4, abc[1]};
+    }
+
+    /**
+     * The values of each axis may be permuted as long as the halves {0,1}
+     * and {2,3} are kept, the axes themselves may be permuted freely.
+     */
+    static final int[][] AXIS_VALUE_GENERATORS = {{1, 0, 2, 3}, {2, 3, 0, 1}};
+
+    /**
+     * @return the map sending axis x to axes[x] and value v on axis x to
+     * values[x][v], taking the cube at column offset from to the cube at
+     * column offset to
+     */
+    static Map<Node, Node> cubeMap(Node[][] vert, int from, int to, int[] axes, int[][] values) {
+        Map<Node, Node> m = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                if (i < 4 || j < 4) {
+                    int[] abc = cubeCoords(i, j);
+                    int[] img = new int[3];
+                    for (int x = 0; x < 3; x++) {
+                        img[axes[x]] = abc[x] == -1 ? -1 : values[x][abc[x]];
+                    }
+                    int[] ij = cubeIndex(img);
+                    m.put(vert[i][j + from], vert[ij[0]][ij[1] + to]);
+                }
+            }
+        }
+        return m;
+    }
+
+    static final int[] AXES = {0, 1, 2};
+    static final int[][] VALUES = {{0, 1, 2, 3}, {0, 1, 2, 3}, {0, 1, 2, 3}};
+
+    /**
+     * Layer permutations along the axes b, c and a, then the cube rotations
+     * and face swaps. The layers of b come first as they split the first row
+     * most finely for SudokuSymmetry.canonicalize.
+     */
+    @Override
+    List<List<Map<Node, Node>>> getSymmetryFactors() {
+        List<List<Map<Node, Node>>> factors = new ArrayList<>();
+        for (int x : new int[]{1, 2, 0}) {
+            List<Map<Node, Node>> layer = new ArrayList<>();
+            for (int[] g : AXIS_VALUE_GENERATORS) {
+                int[][] values = VALUES.clone();
+                values[x] = g;
+                layer.add(cubeMap(vert, 0, 0, AXES, values));
+            }
+            factors.add(layer);
+        }
+        factors.add(Arrays.asList(
+                cubeMap(vert, 0, 0, new int[]{1, 2, 0}, VALUES),
+                cubeMap(vert, 0, 0, new int[]{0, 2, 1}, VALUES)));
+        return factors;
+    }
+
     static final char[] palette;
     static final Map<Node, HashSet<Node>> adjacency; // map of sets
     static final Map<Integer, Character> keyBindings;
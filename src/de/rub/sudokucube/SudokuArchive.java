@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Binary .sud files holding any number of puzzles. After the header (MAGIC,
+ * VERSION) every record is a variant id, the cell values packed into four
+ * bits each, two cells per byte, and a bitmap of the given cells. Cells are
+ * in SudokuTopology order, value 0 meaning empty. Files are read and written
+ * sequentially, so archives of any size can be streamed. The text format of
+ * Sudoku.toXML stays readable through load().
+ *
+ * @author Sora Steenvoort
+ */
+public class SudokuArchive {
+
+    static final int MAGIC = 0x53554442; // "SUDB"
+    static final int VERSION = 1;
+    /**
+     * variant ids, new variants must be appended
+     */
+    static final String[] VARIANTS = {"de.rub.sudokucube.StandardSudoku",
+        "de.rub.sudokucube.Sudoku3DSimple", "de.rub.sudokucube.Sudoku3DHyper"};
+
+    static int variantId(Class<?> cls) {
+        for (int k = 0; k < VARIANTS.length; k++) {
+            if (VARIANTS[k].equals(cls.getName())) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("No variant id for " + cls.getName());
+    }
+
+    static public class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private byte[] buf = new byte[0];
+        private long count = 0;
+
+        public Writer(OutputStream os) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+
+        /**
+         * Writes the puzzle, every filled cell being given.
+         */
+        public void write(SudokuTopology topo, int[] cells) throws IOException {
+            write(topo, cells, null);
+        }
+
+        /**
+         * @param given whether each cell is given, null for all filled cells
+         */
+        public void write(SudokuTopology topo, int[] cells, boolean[] given) throws IOException {
+            int values = (topo.size + 1) / 2, bits = (topo.size + 7) / 8;
+            if (buf.length < values + bits) {
+                buf = new byte[values + bits];
+            }
+            for (int k = 0; k < values + bits; k++) {
+                buf[k] = 0;
+            }
+            for (int i = 0; i < topo.size; i++) {
+                buf[i >> 1] |= cells[i] << ((i & 1) << 2);
+                if (given == null ? cells[i] != 0 : given[i]) {
+                    buf[values + (i >> 3)] |= 1 << (i & 7);
+                }
+            }
+            out.writeByte(variantId(topo.cls));
+            out.write(buf, 0, values + bits);
+            count++;
+        }
+
+        public void write(Sudoku s) throws IOException {
+            SudokuTopology topo = SudokuTopology.of(s);
+            boolean[] given = new boolean[topo.size];
+            for (int i = 0; i < topo.size; i++) {
+                Boolean g = s.getGiven().get(topo.nodes[i]);
+                given[i] = g != null && g;
+            }
+            write(topo, topo.encode(s), given);
+        }
+
+        /**
+         * @return the number of puzzles written
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static public class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final SudokuTopology[] topologies = new SudokuTopology[VARIANTS.length];
+        private byte[] buf = new byte[0];
+        private SudokuTopology topo;
+
+        public Reader(InputStream is) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(is));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a binary Sudoku archive");
+            }
+            int v = in.readUnsignedByte();
+            if (v != VERSION) {
+                throw new IOException("Unsupported archive version " + v);
+            }
+        }
+
+        /**
+         * Reads the next record into cells, and into given unless null; both
+         * must hold the cells of the largest variant.
+         *
+         * @return the topology of the puzzle, null at the end of the archive
+         */
+        public SudokuTopology next(int[] cells, boolean[] given) throws IOException {
+            int id = in.read();
+            if (id < 0) {
+                return null;
+            }
+            if (id >= VARIANTS.length) {
+                throw new IOException("Unknown variant id " + id);
+            }
+            if (topologies[id] == null) {
+                try {
+                    topologies[id] = SudokuTopology.of(Class.forName(VARIANTS[id]));
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+            topo = topologies[id];
+            int values = (topo.size + 1) / 2, bits = (topo.size + 7) / 8;
+            if (buf.length < values + bits) {
+                buf = new byte[values + bits];
+            }
+            try {
+                in.readFully(buf, 0, values + bits);
+            } catch (EOFException e) {
+                throw new IOException("Truncated archive", e);
+            }
+            for (int i = 0; i < topo.size; i++) {
+                cells[i] = (buf[i >> 1] >> ((i & 1) << 2)) & 0xf;
+                if (cells[i] > topo.symbols) {
+                    throw new IOException("Invalid value " + cells[i]);
+                }
+                if (given != null) {
+                    given[i] = (buf[values + (i >> 3)] & (1 << (i & 7))) != 0;
+                }
+            }
+            return topo;
+        }
+
+        /**
+         * @return the next puzzle, null at the end of the archive
+         */
+        public Sudoku read() throws IOException {
+            int[] cells = new int[maxSize()];
+            boolean[] given = new boolean[cells.length];
+            SudokuTopology t = next(cells, given);
+            if (t == null) {
+                return null;
+            }
+            Sudoku s = t.decode(cells);
+            for (int i = 0; i < t.size; i++) {
+                s.getGiven().put(t.nodes[i], given[i]);
+            }
+            return s;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of cells of the largest variant
+     */
+    static public int maxSize() {
+        int m = 0;
+        for (String cls : VARIANTS) {
+            try {
+                m = Math.max(m, SudokuTopology.of(Class.forName(cls)).size);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the first four bytes of bis, which are read again afterwards
+     */
+    static int peekMagic(BufferedInputStream bis) throws IOException {
+        bis.mark(4);
+        int magic = 0;
+        for (int k = 0; k < 4; k++) {
+            magic = magic << 8 | (bis.read() & 0xff);
+        }
+        bis.reset();
+        return magic;
+    }
+
+    /**
+     * Reads the first puzzle of a binary archive, a text file written by
+     * Sudoku.toXML or a file of StandardSudoku lines (SudokuLines).
+     */
+    static public Sudoku load(InputStream is) throws Exception {
+        BufferedInputStream bis = new BufferedInputStream(is);
+        int magic = peekMagic(bis);
+        int first = magic >>> 24;
+        if (first == '.' || first >= '0' && first <= '9') {
+            Sudoku s = new SudokuLines.Reader(bis).read();
+            if (s == null) {
+                throw new IOException("No puzzle line");
+            }
+            return s;
+        }
+        if (magic != MAGIC) {
+            return Sudoku.fromXML(bis);
+        }
+        Reader r = new Reader(bis);
+        Sudoku s = r.read();
+        if (s == null) {
+            throw new IOException("Empty Sudoku archive");
+        }
+        return s;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares search nodes and time of solver settings on generated puzzles of
+ * every variant.
+ *
+ * @author Sora Steenvoort
+ */
+public class SudokuBench {
+
+    static final String[] CLASSES = {"de.rub.sudokucube.StandardSudoku",
+        "de.rub.sudokucube.Sudoku3DSimple", "de.rub.sudokucube.Sudoku3DHyper"};
+
+    interface Setup {
+
+        SolutionCounter create(SudokuTopology topo);
+    }
+
+    static Map<String, Setup> setups() {
+        Map<String, Setup> m = new LinkedHashMap<>();
+        m.put("plain", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                return new SudokuSolver(topo);
+            }
+        });
+        m.put("restarts", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                SudokuSolver s = new SudokuSolver(topo);
+                s.setRestarts(new Random(), SudokuSolver.DEFAULT_RESTART_UNIT);
+                return s;
+            }
+        });
+        m.put("generated", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                SudokuSolver s = new SudokuSolver(topo);
+                s.setGenerated(true);
+                return s;
+            }
+        });
+        m.put("probing(2)", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                SudokuSolver s = new SudokuSolver(topo);
+                s.setProbing(2);
+                return s;
+            }
+        });
+        m.put("probing(all)", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                SudokuSolver s = new SudokuSolver(topo);
+                s.setProbing(topo.symbols);
+                return s;
+            }
+        });
+        m.put("alldiff", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                SudokuSolver s = new SudokuSolver(topo);
+                s.setPropagation(SudokuSolver.PropagationLevel.ALL_DIFFERENT);
+                return s;
+            }
+        });
+        m.put("alldiff+probing(2)", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                SudokuSolver s = new SudokuSolver(topo);
+                s.setPropagation(SudokuSolver.PropagationLevel.ALL_DIFFERENT);
+                s.setProbing(2);
+                return s;
+            }
+        });
+        m.put("components", new Setup() {
+            @Override
+            public SudokuSolver create(SudokuTopology topo) {
+                SudokuSolver s = new SudokuSolver(topo);
+                s.setDecomposition(true);
+                return s;
+            }
+        });
+        m.put("backjump", new Setup() {
+            @Override
+            public SolutionCounter create(SudokuTopology topo) {
+                return new BackjumpSolver(topo);
+            }
+        });
+        m.put("sat", new Setup() {
+            @Override
+            public SolutionCounter create(SudokuTopology topo) {
+                return new SatCounter(topo);
+            }
+        });
+        m.put("portfolio", new Setup() {
+            @Override
+            public SolutionCounter create(SudokuTopology topo) {
+                return new PortfolioSolver(topo);
+            }
+        });
+        return m;
+    }
+
+    /**
+     * @return a random solution grid, not uniformly distributed
+     */
+    static int[] randomGrid(SudokuTopology topo, Random rnd) {
+        SudokuSolver solver = new SudokuSolver(topo);
+        solver.setRestarts(rnd, SudokuSolver.DEFAULT_RESTART_UNIT);
+        int[] grid = new int[topo.size];
+        solver.solve(new int[topo.size], grid);
+        SudokuSymmetry sym = SudokuSymmetry.of(topo.cls);
+        return sym.apply(grid, sym.randomElement(rnd), sym.randomRelabeling(rnd), new int[topo.size]);
+    }
+
+    /**
+     * @return n minimal puzzles of cls
+     */
+    static List<int[]> puzzles(String cls, int n) throws Exception {
+        SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+        Random rnd = new Random(n);
+        List<int[]> l = new ArrayList<>();
+        for (int k = 0; k < n; k++) {
+            AnytimeGenerator g = new AnytimeGenerator(topo.decode(randomGrid(topo, rnd)), 0);
+            l.add(topo.encode(g.start()));
+            g.cancel();
+        }
+        return l;
+    }
+
+    /**
+     * @return the puzzles with k random clues removed, mostly boards with
+     * several solutions as probed by the generators
+     */
+    static List<int[]> weakened(List<int[]> puzzles, int k, Random rnd) {
+        List<int[]> l = new ArrayList<>();
+        for (int[] p : puzzles) {
+            int[] q = p.clone();
+            for (int r = 0; r < k; r++) {
+                int i = rnd.nextInt(q.length);
+                while (q[i] == 0) {
+                    i = (i + 1) % q.length;
+                }
+                q[i] = 0;
+            }
+            l.add(q);
+        }
+        return l;
+    }
+
+    /**
+     * @param args number of puzzles per variant (default 200)
+     */
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        for (String cls : CLASSES) {
+            SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+            Map<String, List<int[]>> sets = new LinkedHashMap<>();
+            sets.put("minimal", puzzles(cls, n));
+            sets.put("minimal-3", weakened(sets.get("minimal"), 3, new Random(n)));
+            for (Map.Entry<String, List<int[]>> set : sets.entrySet()) {
+                for (Map.Entry<String, Setup> e : setups().entrySet()) {
+                    SolutionCounter solver = e.getValue().create(topo);
+                    int noBranch = 0;
+                    long t0 = System.nanoTime();
+                    for (int[] p : set.getValue()) {
+                        long before = solver.getNodes();
+                        solver.count(p, 2);
+                        if (solver.getNodes() - before <= 1) {
+                            noBranch++;
+                        }
+                    }
+                    long t = System.nanoTime() - t0;
+                    System.out.printf("%-16s %-10s %-20s %10.1f nodes %10.1f us %5.1f%% without branching%n",
+                            topo.cls.getSimpleName(), set.getKey(), e.getKey(), solver.getNodes() / (double) n,
+                            t / 1000.0 / n, 100.0 * noBranch / n);
+                }
+            }
+        }
+    }
+}
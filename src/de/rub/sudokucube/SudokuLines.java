@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puzzles as lines of one character per cell, the format of the public
+ * collections of standard Sudokus: 81 characters in row order, '1' to '9'
+ * for values and '.' or '0' for empty cells. Anything after the cells, like
+ * a rating, is ignored, as are blank lines and lines starting with '#'.
+ * Other variants use their palette in SudokuTopology order. Both classes
+ * stream, so collections of any size take constant memory.
+ *
+ * @author Sora Steenvoort
+ */
+public class SudokuLines {
+
+    static public class Reader implements Closeable {
+
+        private final BufferedReader in;
+        final SudokuTopology topo;
+        private final int[] value = new int[128];
+        private long line = 0;
+        private String text;
+
+        /**
+         * Reads lines of StandardSudoku puzzles.
+         */
+        public Reader(InputStream is) throws IOException {
+            this(is, SudokuTopology.of(StandardSudoku.class));
+        }
+
+        public Reader(InputStream is, SudokuTopology topology) throws IOException {
+            in = new BufferedReader(new InputStreamReader(is, StandardCharsets.US_ASCII), 1 << 16);
+            topo = topology;
+            for (int k = 0; k < value.length; k++) {
+                value[k] = -1;
+            }
+            value['.'] = value['0'] = 0;
+            value[topo.empty] = 0;
+            for (int d = 0; d < topo.symbols; d++) {
+                value[topo.palette[d]] = d + 1;
+            }
+        }
+
+        /**
+         * Reads the next puzzle into cells. A malformed line throws an
+         * IOException naming its number; reading may go on with the next one.
+         *
+         * @return false at the end of the input
+         */
+        public boolean next(int[] cells) throws IOException {
+            while ((text = in.readLine()) != null) {
+                line++;
+                if (text.isEmpty() || text.charAt(0) == '#' || text.trim().isEmpty()) {
+                    continue;
+                }
+                if (text.length() < topo.size) {
+                    throw new IOException("Line " + line + ": " + text.length() + " instead of " + topo.size
+                            + " cells");
+                }
+                for (int i = 0; i < topo.size; i++) {
+                    char c = text.charAt(i);
+                    int v = c < value.length ? value[c] : -1;
+                    if (v < 0) {
+                        throw new IOException("Line " + line + ": invalid cell '" + c + "' at " + (i + 1));
+                    }
+                    cells[i] = v;
+                }
+                if (text.length() > topo.size && !isSeparator(text.charAt(topo.size))) {
+                    throw new IOException("Line " + line + ": more than " + topo.size + " cells");
+                }
+                return true;
+            }
+            return false;
+        }
+
+        static private boolean isSeparator(char c) {
+            return Character.isWhitespace(c) || c == ',' || c == ';' || c == '|' || c == '#';
+        }
+
+        /**
+         * @return the next puzzle, null at the end of the input
+         */
+        public Sudoku read() throws IOException {
+            int[] cells = new int[topo.size];
+            if (!next(cells)) {
+                return null;
+            }
+            Sudoku s = topo.decode(cells);
+            for (int i = 0; i < topo.size; i++) {
+                s.getGiven().put(topo.nodes[i], cells[i] != 0);
+            }
+            return s;
+        }
+
+        /**
+         * @return the number of the line read last, counting from 1
+         */
+        public long getLine() {
+            return line;
+        }
+
+        /**
+         * @return the text of the line read last
+         */
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static public class Writer implements Closeable {
+
+        private final BufferedWriter out;
+        final SudokuTopology topo;
+        private char[] buf;
+        private long count = 0;
+
+        /**
+         * Writes lines of StandardSudoku puzzles.
+         */
+        public Writer(OutputStream os) throws IOException {
+            this(os, SudokuTopology.of(StandardSudoku.class));
+        }
+
+        public Writer(OutputStream os, SudokuTopology topology) throws IOException {
+            out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.US_ASCII), 1 << 16);
+            topo = topology;
+            buf = new char[topo.size];
+        }
+
+        /**
+         * Writes cells as one line, empty cells as '.'.
+         */
+        public void write(int[] cells) throws IOException {
+            write(cells, null);
+        }
+
+        /**
+         * Writes cells as one line followed by a tab and comment unless that
+         * is null.
+         */
+        public void write(int[] cells, String comment) throws IOException {
+            write(topo, cells, comment);
+        }
+
+        /**
+         * Writes cells of another variant, for files of mixed variants.
+         */
+        public void write(SudokuTopology t, int[] cells, String comment) throws IOException {
+            if (buf.length < t.size) {
+                buf = new char[t.size];
+            }
+            for (int i = 0; i < t.size; i++) {
+                buf[i] = cells[i] == 0 ? '.' : t.palette[cells[i] - 1];
+            }
+            out.write(buf, 0, t.size);
+            if (comment != null) {
+                out.write('\t');
+                out.write(comment);
+            }
+            out.newLine();
+            count++;
+        }
+
+        /**
+         * Writes a line starting with '#', which readers skip.
+         */
+        public void comment(String text) throws IOException {
+            out.write("# ");
+            out.write(text);
+            out.newLine();
+        }
+
+        public void write(Sudoku s) throws IOException {
+            if (s.getClass() != topo.cls) {
+                throw new IllegalArgumentException(s.getClass().getName() + " is no " + topo.cls.getName());
+            }
+            write(topo.encode(s));
+        }
+
+        /**
+         * @return the number of puzzles written
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static final int BASELINE = 100;
+
+    /**
+     * Solves every puzzle of a line file, writing a solution of each to the
+     * output file, commented if it is not unique, or the puzzle itself if it
+     * has none. The times reported are those of the setup counting up to two
+     * solutions; with -times the line, solution count and microseconds of
+     * every puzzle are printed. Every puzzle with a solution is then solved
+     * by SudokuSolver, whether there is an output file or not, and timed
+     * apart. The first BASELINE puzzles with a unique solution are solved
+     * again by SudokuToolkit.solve, which collects all solutions, for
+     * comparison.
+     *
+     * @param args input file, then optionally -o output file, -s setup of
+     * SudokuBench (default plain, the fastest), -c Sudoku class, -times
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: SudokuLines <puzzles> [-o <solutions>] [-s <setup>] [-c <class>] [-times]");
+            System.exit(1);
+        }
+        String outFile = null, setup = "plain", cls = "de.rub.sudokucube.StandardSudoku";
+        boolean times = false;
+        for (int k = 1; k < args.length; k++) {
+            switch (args[k]) {
+                case "-o":
+                    outFile = args[++k];
+                    break;
+                case "-s":
+                    setup = args[++k];
+                    break;
+                case "-c":
+                    cls = args[++k];
+                    break;
+                case "-times":
+                    times = true;
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[k]);
+                    System.exit(1);
+            }
+        }
+        Map<String, SudokuBench.Setup> setups = SudokuBench.setups();
+        if (!setups.containsKey(setup)) {
+            System.err.println("Unknown setup " + setup + ", one of " + setups.keySet());
+            System.exit(1);
+        }
+        SudokuTopology topo = SudokuTopology.of(Class.forName(cls));
+        SolutionCounter counter = setups.get(setup).create(topo);
+        SudokuSolver solver = new SudokuSolver(topo);
+        int[] cells = new int[topo.size], solution = new int[topo.size];
+        long puzzles = 0, unique = 0, multiple = 0, none = 0, invalid = 0;
+        long total = 0, slowest = 0, slowestLine = 0, solving = 0;
+        List<Sudoku> baseline = new ArrayList<>();
+        long baselineTime = 0;
+        try (Reader r = new Reader(new FileInputStream(args[0]), topo);
+                Writer w = outFile == null ? null : new Writer(new FileOutputStream(outFile), topo)) {
+            while (true) {
+                try {
+                    if (!r.next(cells)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    invalid++;
+                    System.err.println(e.getMessage());
+                    continue;
+                }
+                puzzles++;
+                long t0 = System.nanoTime();
+                long ct = counter.count(cells, 2);
+                long t = System.nanoTime() - t0;
+                total += t;
+                t0 = System.nanoTime();
+                boolean solved = ct > 0 && solver.solve(cells, solution);
+                solving += System.nanoTime() - t0;
+                if (ct == 1 && baseline.size() < BASELINE) {
+                    baseline.add(topo.decode(cells));
+                    baselineTime += t;
+                }
+                if (t > slowest) {
+                    slowest = t;
+                    slowestLine = r.getLine();
+                }
+                String status = ct == 0 ? "no solution" : (ct == 1 ? null : "multiple solutions");
+                if (ct == 0) {
+                    none++;
+                } else if (ct == 1) {
+                    unique++;
+                } else {
+                    multiple++;
+                }
+                if (w != null) {
+                    w.write(solved ? solution : cells, status);
+                }
+                if (times) {
+                    System.out.printf("%d\t%d\t%.1f%n", r.getLine(), ct, t / 1000.0);
+                }
+            }
+        }
+        System.out.printf("%d puzzles (%d unique, %d multiple, %d without solution), %d invalid lines%n",
+                puzzles, unique, multiple, none, invalid);
+        System.out.printf("setup %s: %.3f s, %.0f puzzles/s, %.1f us mean, %.1f us max (line %d)%n", setup,
+                total / 1e9, puzzles / (total / 1e9), total / 1000.0 / Math.max(1, puzzles), slowest / 1000.0,
+                slowestLine);
+        System.out.printf("SudokuSolver.solve of the puzzles with a solution: %.3f s%n", solving / 1e9);
+        long t0 = System.nanoTime();
+        for (Sudoku s : baseline) {
+            SudokuToolkit.solve(s);
+        }
+        long t = System.nanoTime() - t0;
+        System.out.printf("first %d unique puzzles: setup %s %.3f s, SudokuToolkit.solve %.3f s (%.0f times as long)%n",
+                baseline.size(), setup, baselineTime / 1e9, t / 1e9, t / (double) Math.max(1, baselineTime));
+    }
+}
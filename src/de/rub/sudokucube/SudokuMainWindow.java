@@ -32,7 +32,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.SwingWorker;
@@ -57,6 +59,7 @@ public class SudokuMainWindow extends javax.swing.JFrame implements PropertyChan
         "de.rub.sudokucube.StandardSudoku"
     };
     int[] aset = new int[]{0, 0};
+    private final Random rnd = new Random();
     static final String VERSION = "v1.1";
     static final String PROGRAM_NAME = "SudokuCube " + VERSION;
 
@@ -336,46 +339,116 @@ public class SudokuMainWindow extends javax.swing.JFrame implements PropertyChan
         }
     }
 
-    class SudokuGenerator extends SwingWorker<Sudoku, Object> {
+    /**
+     * Shows the first puzzle of an AnytimeGenerator as soon as it exists and
+     * swaps in the better ones found within TIME_FOR_RPFS(), until the user
+     * enters a value.
+     */
+    class SudokuGenerator extends SwingWorker<Sudoku, Sudoku> {
+
+        private AnytimeGenerator gen = null;
+        private boolean shown = false;
 
         @Override
         public Sudoku doInBackground() {
             if (DEBUG) {
                 t1 = System.currentTimeMillis();
             }
+            // a stored puzzle of the chosen class is found in microseconds,
+            // generating one takes a while; the OptionsDialog has no levels
+            // yet, so any difficulty is taken
+            PuzzleIndex index = PuzzleIndex.shared();
+            if (index != null) {
+                long id = index.random(puzCls, 0, 255, -1, Short.MAX_VALUE, rnd);
+                if (id >= 0) {
+                    puz = index.db.puzzle(id);
+                    sln = index.db.solution(id);
+                    SolutionCache.shared().put(puz, sln);
+                    if (DEBUG) {
+                        System.err.println((System.currentTimeMillis() - t1) / 1000.0
+                                + " seconds needed for PuzzleIndex.random()");
+                    }
+                    return null;
+                }
+            }
             try {
                 sln = Sudoku.randomPuzzle(puzCls.getCanonicalName());
             } catch (Exception e) {
                 System.err.println(e);
+                return null;
             }
             if (DEBUG) {
                 t2 = System.currentTimeMillis();
                 System.err.println((t2 - t1) / 1000.0 + " seconds needed for randomPuzzle()");
             }
-            try {
-                puz = SudokuToolkit.randomPuzzleFromSolution(sln);
-            } catch (Exception e) {
-                System.err.println(e);
-            }
+            gen = new AnytimeGenerator(sln, sln.TIME_FOR_RPFS());
+            gen.addListener(new AnytimeGenerator.Listener() {
+                @Override
+                public void improved(AnytimeGenerator g, Sudoku puzzle) {
+                    publish(puzzle);
+                }
+            });
+            gen.start();
             if (DEBUG) {
                 t3 = System.currentTimeMillis();
-                System.err.println((t3 - t2) / 1000.0 + " seconds needed for randomPuzzleFromSolution()");
+                System.err.println((t3 - t2) / 1000.0 + " seconds needed for AnytimeGenerator.start()");
+            }
+            try {
+                return gen.await();
+            } catch (InterruptedException e) {
+                gen.cancel();
+                return null;
+            }
+        }
+
+        @Override
+        protected void process(List<Sudoku> chunks) {
+            if (isCancelled()) {
+                return;
+            }
+            Sudoku best = chunks.get(chunks.size() - 1);
+            if (!shown) {
+                puz = best;
+                show();
+            } else if (untouched()) {
+                puz = best;
+                drawPanel1.setup(puz, true);
+                drawPanel1.repaint();
+            } else {
+                gen.cancel();
             }
-            while (!allSetup) {
-                try {
-                    Thread.sleep(10);
-                } catch (Exception e) {
+        }
+
+        /**
+         * @return whether the user has not entered a value yet
+         */
+        private boolean untouched() {
+            for (Node n : puz.getNodes()) {
+                if (!puz.getGiven().get(n) && puz.getValue(n) != puz.getEmpty()) {
+                    return false;
                 }
             }
-            return null;
+            return true;
+        }
+
+        private void show() {
+            shown = true;
+            timer.stop();
+            allSetup = true;
+            drawPanel1.setup(puz, true);
+            switchToGameView();
+            jProgressBar1.setVisible(false);
         }
 
         @Override
         protected void done() {
             if (!isCancelled()) {
-                drawPanel1.setup(puz, true);
-                switchToGameView();
-                jProgressBar1.setVisible(false);
+                if (!shown && puz != null) {
+                    show();
+                }
+                if (puz != null && sln != null) {
+                    SolutionCache.shared().put(puz, sln);
+                }
                 sudGen = null;
             }
         }
@@ -422,6 +495,10 @@ public class SudokuMainWindow extends javax.swing.JFrame implements PropertyChan
     }
 
     private void switchFromGameView() {
+        if (sudGen != null) {
+            sudGen.cancel(true);
+            sudGen = null;
+        }
         this.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
         this.removeWindowListener(wl);
         CardLayout cl = (CardLayout) (superPanel.getLayout());
@@ -438,11 +515,8 @@ public class SudokuMainWindow extends javax.swing.JFrame implements PropertyChan
             if (state == JFileChooser.APPROVE_OPTION) {
                 File iFile = fc.getSelectedFile();
                 InputStream is = new FileInputStream(iFile);
-                puz = Sudoku.fromXML(is);
-                for (Sudoku Sln : SudokuToolkit.solve(puz.sanitize())) {
-                    sln = Sln;
-                    break;
-                }
+                puz = SudokuArchive.load(is);
+                sln = SolutionCache.shared().solve(puz);
                 drawPanel1.setup(puz, true);
                 switchToGameView();
             } else {
@@ -490,6 +564,9 @@ public class SudokuMainWindow extends javax.swing.JFrame implements PropertyChan
                 FileOutputStream oStream = new FileOutputStream(oFile);
                 PrintStream pStream = new PrintStream(oStream);
                 puz.toXML(pStream);
+                if (sln != null) {
+                    SolutionCache.shared().put(puz, sln);
+                }
             } else {
 
             }
@@ -509,7 +586,12 @@ public class SudokuMainWindow extends javax.swing.JFrame implements PropertyChan
     }//GEN-LAST:event_hintBtnActionPerformed
 
     private void checkBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_checkBtnActionPerformed
-        drawPanel1.verify(sln);
+        if (sln == null) {
+            sln = SolutionCache.shared().solve(puz);
+        }
+        if (sln != null) {
+            drawPanel1.verify(sln);
+        }
     }//GEN-LAST:event_checkBtnActionPerformed
 
     private void optionsBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_optionsBtnActionPerformed
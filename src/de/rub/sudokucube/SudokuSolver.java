@@ -0,0 +1,780 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Search over candidate bit masks on a compiled SudokuTopology. Propagates
+ * naked and hidden singles and branches on a cell with the fewest candidates.
+ * All scratch space is allocated up front, so one instance must only be used
+ * by one thread at a time.
+ *
+ * @author Sora Steenvoort
+ */
+public class SudokuSolver implements SolutionCounter {
+
+    public enum PropagationLevel {
+        /**
+         * naked and hidden singles
+         */
+        SINGLES,
+        /**
+         * singles and AllDifferentFilter on every changed house
+         */
+        ALL_DIFFERENT
+    }
+
+    public interface Visitor {
+
+        /**
+         * @return false to stop the enumeration
+         */
+        boolean visit(int[] cells);
+    }
+
+    final SudokuTopology topo;
+    final int size;
+    final int[][] stack; // candidate masks, one row per search depth
+    private final int[] queue;
+    private final int[] solution;
+    private int qHead, qTail;
+    private volatile boolean cancelled = false;
+    private final int[] probeRow;
+    private PropagationLevel level = PropagationLevel.SINGLES;
+    private AllDifferentFilter alldiff = null;
+    private long[] houseHash; // candidates of each house after its last filtering
+    private int probeLimit = 0;
+    private PropagationKernel kernel = null;
+    long nodes;
+
+    static final long DEFAULT_RESTART_UNIT = 100;
+
+    // restart mode, off while rnd is null
+    private Random rnd = null;
+    private long restartUnit;
+    private long runLimit = Long.MAX_VALUE, runStart;
+    private boolean aborted;
+    private long[] runNodes = new long[0];
+    private int runs;
+
+    static final int COMPONENT_CACHE_CAPACITY = 1 << 16;
+    private boolean decompose = false;
+    private int[] allCells, compMark;
+    private int[][] compCells, compStarts; // components of every depth
+    private int compStamp = 0;
+    private Map<ComponentKey, Long> componentCache;
+    private long componentHits;
+
+    /**
+     * Unfilled cells of a component with their candidates, sorted by cell.
+     */
+    static private final class ComponentKey {
+
+        final int[] data;
+        final int hash;
+
+        ComponentKey(int[] d) {
+            data = d;
+            hash = Arrays.hashCode(d);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ComponentKey && Arrays.equals(data, ((ComponentKey) o).data);
+        }
+    }
+
+    public SudokuSolver(SudokuTopology topology) {
+        topo = topology;
+        size = topo.size;
+        stack = new int[size + 1][size];
+        queue = new int[size * (topo.symbols + 1)];
+        solution = new int[size];
+        probeRow = new int[size];
+    }
+
+    public SudokuTopology getTopology() {
+        return topo;
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Turns on randomized restarts for count() and solve(): ties in the cell
+     * selection are broken at random, and run i is abandoned after
+     * unit * luby(i) nodes. Every run is complete if it finishes, and the
+     * Luby budgets grow without bound, so results stay exact.
+     *
+     * @param random source of the tie-breaking, null to turn restarts off
+     * @param unit nodes per unit of the schedule
+     */
+    public void setRestarts(Random random, long unit) {
+        rnd = random;
+        restartUnit = unit;
+    }
+
+    public void setPropagation(PropagationLevel l) {
+        level = l;
+        if (level == PropagationLevel.ALL_DIFFERENT && alldiff == null) {
+            alldiff = new AllDifferentFilter(topo.symbols);
+            houseHash = new long[topo.houses.length];
+        }
+    }
+
+    public PropagationLevel getPropagation() {
+        return level;
+    }
+
+    /**
+     * Switches the singles propagation to the PropagationKernel generated
+     * for the topology by "ant generate-kernels", or back to the generic
+     * loops. Node counts are the same, but the unrolled kernels are slower
+     * than the generic loops on every variant when warm, so they are off by
+     * default, not generated by the default build and only compared by
+     * SudokuBench.
+     *
+     * @return whether the generated kernel is used
+     */
+    public boolean setGenerated(boolean on) {
+        kernel = on ? topo.kernel() : null;
+        return kernel != null;
+    }
+
+    /**
+     * Runs the AllDifferentFilter on every house whose candidates changed
+     * since it was filtered last. A hash collision only skips a filtering,
+     * which never makes results wrong.
+     *
+     * @return the number of cells reduced, -1 on contradiction
+     */
+    private int filterHouses(int[] cand) {
+        int reduced = 0;
+        for (int h = 0; h < topo.houses.length; h++) {
+            int[] house = topo.houses[h];
+            if (hash(cand, house) == houseHash[h]) {
+                continue;
+            }
+            if (!alldiff.filter(cand, house)) {
+                return -1;
+            }
+            for (int k = 0; k < alldiff.changedCt; k++) {
+                int c = house[alldiff.changed[k]];
+                if ((cand[c] & (cand[c] - 1)) == 0) {
+                    queue[qTail++] = c;
+                }
+            }
+            reduced += alldiff.changedCt;
+            houseHash[h] = hash(cand, house);
+        }
+        return reduced;
+    }
+
+    static private long hash(int[] cand, int[] house) {
+        long h = 0;
+        for (int c : house) {
+            h = (h ^ cand[c]) * 0x9E3779B97F4A7C15L;
+        }
+        return h;
+    }
+
+    /**
+     * Turns on failed-literal probing before every branch: each candidate of
+     * the cells with at most maxCandidates candidates is assigned on a copy,
+     * and removed if propagation fails. 0 turns probing off.
+     */
+    public void setProbing(int maxCandidates) {
+        probeLimit = maxCandidates;
+    }
+
+    /**
+     * Probes until no candidate is removed any more.
+     *
+     * @return false on contradiction
+     */
+    boolean probe(int[] cand) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < size; i++) {
+                int m = cand[i];
+                if ((m & (m - 1)) == 0 || Integer.bitCount(m) > probeLimit) {
+                    continue;
+                }
+                for (; m != 0; m &= m - 1) {
+                    int b = m & -m;
+                    if ((cand[i] & b) == 0) {
+                        continue;
+                    }
+                    System.arraycopy(cand, 0, probeRow, 0, size);
+                    if (!assign(probeRow, i, b)) {
+                        cand[i] &= ~b;
+                        changed = true;
+                        qHead = qTail = 0;
+                        if ((cand[i] & (cand[i] - 1)) == 0) {
+                            queue[qTail++] = i;
+                        }
+                        if (cand[i] == 0 || !propagate(cand)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turns on component decomposition for count(): the unfilled cells are
+     * split into groups not linked by peers, each group is counted on its own
+     * and the counts are multiplied. Candidates already reflect the filled
+     * cells, and all unfilled cells of a house end up in the same group, so
+     * the groups are independent. Counts of groups found by a split are
+     * cached by their cells and candidates, across calls of count().
+     */
+    public void setDecomposition(boolean on) {
+        decompose = on;
+        if (decompose && compCells == null) {
+            allCells = new int[size];
+            for (int i = 0; i < size; i++) {
+                allCells[i] = i;
+            }
+            compMark = new int[size];
+            compCells = new int[size + 1][size];
+            compStarts = new int[size + 1][size + 1];
+            componentCache = new LinkedHashMap<ComponentKey, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ComponentKey, Long> eldest) {
+                    return size() > COMPONENT_CACHE_CAPACITY;
+                }
+            };
+        }
+    }
+
+    /**
+     * @return how often a cached component count was reused
+     */
+    public long getComponentHits() {
+        return componentHits;
+    }
+
+    /**
+     * @return the i-th element (from 1) of the Luby sequence 1 1 2 1 1 2 4 ...
+     */
+    static long luby(long i) {
+        while (true) {
+            int k = 1;
+            while ((1L << k) - 1 < i) {
+                k++;
+            }
+            if ((1L << k) - 1 == i) {
+                return 1L << (k - 1);
+            }
+            i -= (1L << (k - 1)) - 1;
+        }
+    }
+
+    /**
+     * @return the number of runs of the last count() or solve()
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the nodes searched by each run of the last count() or solve(),
+     * all but the last one being abandoned
+     */
+    public long[] getRunNodes() {
+        return Arrays.copyOf(runNodes, runs);
+    }
+
+    /**
+     * Fills cand with the candidates left by the given cells.
+     *
+     * @return false if the cells contradict each other
+     */
+    public boolean load(int[] cells, int[] cand) {
+        qHead = qTail = 0;
+        for (int i = 0; i < size; i++) {
+            if (cells[i] == 0) {
+                cand[i] = topo.all;
+            } else {
+                cand[i] = 1 << (cells[i] - 1);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (cells[i] != 0) {
+                queue[qTail++] = i;
+            }
+        }
+        return propagate(cand);
+    }
+
+    /**
+     * Restricts cell to the single candidate bit and propagates.
+     *
+     * @return false on contradiction
+     */
+    public boolean assign(int[] cand, int cell, int bit) {
+        if ((cand[cell] & bit) == 0) {
+            return false;
+        }
+        qHead = qTail = 0;
+        cand[cell] = bit;
+        queue[qTail++] = cell;
+        return propagate(cand);
+    }
+
+    boolean propagate(int[] cand) {
+        final int[][] peers = topo.peers;
+        while (true) {
+            while (kernel != null && qHead < qTail) {
+                int t = kernel.eliminate(cand, queue[qHead++], queue, qTail);
+                if (t < 0) {
+                    return false;
+                }
+                qTail = t;
+            }
+            while (qHead < qTail) {
+                int c = queue[qHead++];
+                int b = cand[c];
+                for (int p : peers[c]) {
+                    int m = cand[p];
+                    if ((m & b) != 0) {
+                        m &= ~b;
+                        if (m == 0) {
+                            return false;
+                        }
+                        cand[p] = m;
+                        if ((m & (m - 1)) == 0) {
+                            queue[qTail++] = p;
+                        }
+                    }
+                }
+            }
+            qHead = qTail = 0;
+            // hidden singles
+            if (kernel != null) {
+                int t = kernel.hiddenSingles(cand, queue, 0);
+                if (t < 0) {
+                    return false;
+                }
+                qTail = t;
+            } else {
+                for (int[] h : topo.houses) {
+                    int once = 0, twice = 0;
+                    for (int c : h) {
+                        int m = cand[c];
+                        twice |= once & m;
+                        once |= m;
+                    }
+                    if (once != topo.all) {
+                        return false;
+                    }
+                    int hidden = once & ~twice;
+                    while (hidden != 0) {
+                        int b = hidden & -hidden;
+                        hidden &= hidden - 1;
+                        for (int c : h) {
+                            if ((cand[c] & b) != 0) {
+                                if (cand[c] != b) {
+                                    cand[c] = b;
+                                    queue[qTail++] = c;
+                                }
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            if (qTail == 0) {
+                if (level == PropagationLevel.SINGLES) {
+                    return true;
+                }
+                int reduced = filterHouses(cand);
+                if (reduced < 0) {
+                    return false;
+                }
+                if (reduced == 0) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the unfilled cell with the fewest candidates, -1 if all cells
+     * are decided
+     */
+    int selectCell(int[] cand) {
+        if (rnd != null) {
+            return selectCellRandomly(cand);
+        }
+        int best = -1, bestCt = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int m = cand[i];
+            if ((m & (m - 1)) != 0) {
+                int ct = Integer.bitCount(m);
+                if (ct < bestCt) {
+                    bestCt = ct;
+                    best = i;
+                    if (ct == 2) {
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private int selectCellRandomly(int[] cand) {
+        int best = -1, bestCt = Integer.MAX_VALUE, ties = 0;
+        for (int i = 0; i < size; i++) {
+            int m = cand[i];
+            if ((m & (m - 1)) != 0) {
+                int ct = Integer.bitCount(m);
+                if (ct < bestCt) {
+                    bestCt = ct;
+                    best = i;
+                    ties = 1;
+                } else if (ct == bestCt && rnd.nextInt(++ties) == 0) {
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void resume() {
+        cancelled = false;
+    }
+
+    @Override
+    public long count(int[] cells, long limit) {
+        runs = 0;
+        if (!load(cells, stack[0])) {
+            return 0;
+        }
+        return restartSearch(limit, decompose);
+    }
+
+    /**
+     * Writes the first solution found into out.
+     *
+     * @return false if cells has no solution
+     */
+    public boolean solve(int[] cells, int[] out) {
+        runs = 0;
+        if (!load(cells, stack[0])) {
+            return false;
+        }
+        if (restartSearch(1, false) == 0) {
+            return false;
+        }
+        System.arraycopy(solution, 0, out, 0, size);
+        return true;
+    }
+
+    /**
+     * Rates cells by the number of rounds needed to fill them, each round
+     * placing all naked and hidden singles of the previous round at once.
+     * Since rounds do not depend on the order of cells or values, the rating
+     * is invariant under the symmetry group and relabelings.
+     *
+     * @return the number of rounds, -1 if singles do not suffice
+     */
+    public int rate(int[] cells) {
+        int[] cur = stack[0], next = stack[1], mask = stack[2];
+        System.arraycopy(cells, 0, cur, 0, size);
+        int rounds = 0;
+        while (true) {
+            int placed = 0, open = 0;
+            System.arraycopy(cur, 0, next, 0, size);
+            for (int i = 0; i < size; i++) {
+                if (cur[i] == 0) {
+                    open++;
+                    int m = topo.all;
+                    for (int p : topo.peers[i]) {
+                        if (cur[p] != 0) {
+                            m &= ~(1 << (cur[p] - 1));
+                        }
+                    }
+                    if (m == 0) {
+                        return -1;
+                    }
+                    if ((m & (m - 1)) == 0) {
+                        next[i] = Integer.numberOfTrailingZeros(m) + 1;
+                        placed++;
+                    }
+                    mask[i] = m;
+                }
+            }
+            if (open == 0) {
+                return rounds;
+            }
+            for (int[] h : topo.houses) {
+                int once = 0, twice = 0, filled = 0;
+                for (int c : h) {
+                    if (cur[c] != 0) {
+                        filled |= 1 << (cur[c] - 1);
+                    } else {
+                        twice |= once & mask[c];
+                        once |= mask[c];
+                    }
+                }
+                for (int hidden = once & ~twice & ~filled; hidden != 0; hidden &= hidden - 1) {
+                    int b = hidden & -hidden;
+                    for (int c : h) {
+                        if (cur[c] == 0 && (mask[c] & b) != 0) {
+                            if (next[c] == 0) {
+                                next[c] = Integer.numberOfTrailingZeros(b) + 1;
+                                placed++;
+                            } else if (next[c] != Integer.numberOfTrailingZeros(b) + 1) {
+                                return -1;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            if (placed == 0) {
+                return -1;
+            }
+            int[] t = cur;
+            cur = next;
+            next = t;
+            rounds++;
+        }
+    }
+
+    /**
+     * Passes every solution reachable from the candidates in cand to v.
+     *
+     * @return the number of solutions visited
+     */
+    public long enumerate(int[] cand, Visitor v) {
+        System.arraycopy(cand, 0, stack[0], 0, size);
+        qHead = qTail = 0;
+        for (int i = 0; i < size; i++) {
+            if ((cand[i] & (cand[i] - 1)) == 0) {
+                queue[qTail++] = i;
+            }
+        }
+        if (!propagate(stack[0])) {
+            return 0;
+        }
+        return search(0, Long.MAX_VALUE, v);
+    }
+
+    private boolean stop;
+
+    /**
+     * Searches from stack[0], restarting with the next budget whenever a run
+     * is abandoned.
+     *
+     * @param split whether to count with component decomposition
+     */
+    private long restartSearch(long limit, boolean split) {
+        if (rnd == null) {
+            return split ? splitSearch(limit) : search(0, limit, null);
+        }
+        while (true) {
+            if (runs == runNodes.length) {
+                runNodes = Arrays.copyOf(runNodes, Math.max(8, 2 * runs));
+            }
+            runLimit = restartUnit * luby(runs + 1);
+            runStart = nodes;
+            aborted = false;
+            long ct = split ? splitSearch(limit) : search(0, limit, null);
+            runNodes[runs++] = nodes - runStart;
+            if (!aborted) {
+                runLimit = Long.MAX_VALUE;
+                return ct;
+            }
+        }
+    }
+
+    private long search(int depth, long limit, Visitor v) {
+        stop = false;
+        return searchRec(depth, limit, v);
+    }
+
+    private long searchRec(int depth, long limit, Visitor v) {
+        if (++nodes - runStart > runLimit) {
+            aborted = stop = true;
+            return 0;
+        }
+        if (cancelled) {
+            stop = true;
+            return 0;
+        }
+        int[] cand = stack[depth];
+        int cell = selectCell(cand);
+        if (cell != -1 && probeLimit > 0) {
+            if (!probe(cand)) {
+                return 0;
+            }
+            cell = selectCell(cand);
+        }
+        if (cell == -1) {
+            for (int i = 0; i < size; i++) {
+                solution[i] = Integer.numberOfTrailingZeros(cand[i]) + 1;
+            }
+            if (v != null && !v.visit(solution)) {
+                stop = true;
+            }
+            return 1;
+        }
+        long ct = 0;
+        int[] next = stack[depth + 1];
+        int m = cand[cell];
+        while (m != 0 && ct < limit && !stop) {
+            int b = m & -m;
+            m &= m - 1;
+            System.arraycopy(cand, 0, next, 0, size);
+            if (assign(next, cell, b)) {
+                ct += searchRec(depth + 1, limit - ct, v);
+            }
+        }
+        return ct;
+    }
+
+    private long splitSearch(long limit) {
+        stop = false;
+        return countRec(0, limit, allCells, 0, size);
+    }
+
+    /**
+     * Counts the completions of the cells region[from .. from + len) in
+     * stack[depth], multiplying the counts of their components.
+     */
+    private long countRec(int depth, long limit, int[] region, int from, int len) {
+        if (++nodes - runStart > runLimit) {
+            aborted = stop = true;
+            return 0;
+        }
+        if (cancelled) {
+            stop = true;
+            return 0;
+        }
+        int[] cand = stack[depth];
+        if (probeLimit > 0 && !probe(cand)) {
+            return 0;
+        }
+        int n = components(cand, region, from, len, compCells[depth], compStarts[depth]);
+        long ct = 1;
+        for (int k = 0; k < n && ct > 0 && !stop; k++) {
+            int[] starts = compStarts[depth];
+            long c = countComponent(depth, limit, compCells[depth], starts[k], starts[k + 1] - starts[k], n > 1);
+            ct = c != 0 && ct > limit / c ? limit : Math.min(limit, ct * c);
+        }
+        return ct;
+    }
+
+    /**
+     * Writes the components of the unfilled cells of region to comp, the
+     * k-th taking comp[starts[k] .. starts[k + 1]) and sorted by cell.
+     *
+     * @return the number of components
+     */
+    private int components(int[] cand, int[] region, int from, int len, int[] comp, int[] starts) {
+        int stamp = ++compStamp, n = 0, top = 0;
+        for (int r = from; r < from + len; r++) {
+            int i = region[r];
+            int m = cand[i];
+            if ((m & (m - 1)) == 0 || compMark[i] == stamp) {
+                continue;
+            }
+            starts[n++] = top;
+            compMark[i] = stamp;
+            comp[top++] = i;
+            for (int q = starts[n - 1]; q < top; q++) {
+                for (int p : topo.peers[comp[q]]) {
+                    int pm = cand[p];
+                    if ((pm & (pm - 1)) != 0 && compMark[p] != stamp) {
+                        compMark[p] = stamp;
+                        comp[top++] = p;
+                    }
+                }
+            }
+            Arrays.sort(comp, starts[n - 1], top);
+        }
+        starts[n] = top;
+        return n;
+    }
+
+    /**
+     * Counts the completions of the component comp[from .. from + len) in
+     * stack[depth], consulting the cache if cached. A cached value below 0
+     * means at least -value completions.
+     */
+    private long countComponent(int depth, long limit, int[] comp, int from, int len, boolean cached) {
+        int[] cand = stack[depth];
+        ComponentKey key = null;
+        if (cached) {
+            int[] d = new int[2 * len];
+            for (int k = 0; k < len; k++) {
+                d[2 * k] = comp[from + k];
+                d[2 * k + 1] = cand[comp[from + k]];
+            }
+            key = new ComponentKey(d);
+            Long v = componentCache.get(key);
+            if (v != null && (v >= 0 || -v >= limit)) {
+                componentHits++;
+                return Math.min(limit, Math.abs(v));
+            }
+        }
+        int cell = -1, bestCt = Integer.MAX_VALUE;
+        for (int k = from; k < from + len; k++) {
+            int ct = Integer.bitCount(cand[comp[k]]);
+            if (ct < bestCt) {
+                bestCt = ct;
+                cell = comp[k];
+            }
+        }
+        long ct = 0;
+        int[] next = stack[depth + 1];
+        for (int m = cand[cell]; m != 0 && ct < limit && !stop; m &= m - 1) {
+            System.arraycopy(cand, 0, next, 0, size);
+            if (assign(next, cell, m & -m)) {
+                ct += countRec(depth + 1, limit - ct, comp, from, len);
+            }
+        }
+        if (cached && !stop) {
+            componentCache.put(key, ct < limit ? ct : -ct);
+        }
+        return ct;
+    }
+}
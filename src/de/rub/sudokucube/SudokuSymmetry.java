@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Symmetry group of a Sudoku class on its SudokuTopology. Each factor given
+ * by getSymmetryFactors() is closed to a list of cell permutations, a group
+ * element picks one permutation per factor. A permutation p moves the value
+ * of cell i to cell p[i].
+ *
+ * @author Sora Steenvoort
+ */
+public class SudokuSymmetry {
+
+    static final private Map<Class<?>, SudokuSymmetry> symmetries = new HashMap<>();
+
+    final SudokuTopology topo;
+    final int[][][] factors;  // factors[f][e] maps cell i to factors[f][e][i]
+    final int[][][] inverses; // inverses[f][e] maps cell i to its preimage
+    final int[][] prefixLengths; // common prefix of inverses[f][e] and [e+1]
+    final long order;
+    private final StandardCanonicalizer standard; // null for other classes
+
+    static public synchronized SudokuSymmetry of(Class<?> cls) {
+        SudokuSymmetry s = symmetries.get(cls);
+        if (s == null) {
+            s = new SudokuSymmetry(SudokuTopology.of(cls));
+            symmetries.put(cls, s);
+        }
+        return s;
+    }
+
+    private SudokuSymmetry(SudokuTopology topology) {
+        topo = topology;
+        List<List<Map<Node, Node>>> gens = topo.template.getSymmetryFactors();
+        factors = new int[gens.size()][][];
+        inverses = new int[gens.size()][][];
+        prefixLengths = new int[gens.size()][];
+        long o = 1;
+        for (int f = 0; f < factors.length; f++) {
+            List<int[]> g = new ArrayList<>();
+            for (Map<Node, Node> m : gens.get(f)) {
+                g.add(compile(m));
+            }
+            List<int[]> inv = new ArrayList<>();
+            for (int[] e : closure(g)) {
+                inv.add(invert(e));
+            }
+            Collections.sort(inv, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    for (int i = 0; i < a.length; i++) {
+                        if (a[i] != b[i]) {
+                            return a[i] < b[i] ? -1 : 1;
+                        }
+                    }
+                    return 0;
+                }
+            });
+            inverses[f] = inv.toArray(new int[0][]);
+            factors[f] = new int[inverses[f].length][];
+            prefixLengths[f] = new int[inverses[f].length];
+            for (int e = 0; e < inverses[f].length; e++) {
+                factors[f][e] = invert(inverses[f][e]);
+                if (e > 0) {
+                    int l = 0;
+                    while (l < topo.size && inverses[f][e - 1][l] == inverses[f][e][l]) {
+                        l++;
+                    }
+                    prefixLengths[f][e - 1] = l;
+                }
+            }
+            o *= factors[f].length;
+        }
+        order = o;
+        standard = topo.cls == StandardSudoku.class ? new StandardCanonicalizer(topo) : null;
+    }
+
+    private int[] compile(Map<Node, Node> m) {
+        int[] p = new int[topo.size];
+        for (int i = 0; i < topo.size; i++) {
+            Node n = m.get(topo.nodes[i]);
+            p[i] = n == null ? i : topo.indexOf(n);
+        }
+        // every generator has to preserve the adjacency
+        for (int i = 0; i < topo.size; i++) {
+            Set<Integer> image = new HashSet<>();
+            for (int q : topo.peers[i]) {
+                image.add(p[q]);
+            }
+            for (int q : topo.peers[p[i]]) {
+                if (!image.remove(q)) {
+                    throw new IllegalStateException("Symmetry generator of " + topo.cls.getSimpleName()
+                            + " does not preserve the neighbours of " + topo.nodes[i]);
+                }
+            }
+        }
+        return p;
+    }
+
+    private int[][] closure(List<int[]> gens) {
+        List<int[]> elems = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int[] id = new int[topo.size];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = i;
+        }
+        elems.add(id);
+        seen.add(Arrays.toString(id));
+        for (int k = 0; k < elems.size(); k++) {
+            for (int[] g : gens) {
+                int[] e = compose(g, elems.get(k));
+                if (seen.add(Arrays.toString(e))) {
+                    elems.add(e);
+                }
+            }
+        }
+        return elems.toArray(new int[0][]);
+    }
+
+    /**
+     * @return the permutation applying q first, then p
+     */
+    static int[] compose(int[] p, int[] q) {
+        int[] r = new int[q.length];
+        for (int i = 0; i < q.length; i++) {
+            r[i] = p[q[i]];
+        }
+        return r;
+    }
+
+    static int[] invert(int[] p) {
+        int[] r = new int[p.length];
+        for (int i = 0; i < p.length; i++) {
+            r[p[i]] = i;
+        }
+        return r;
+    }
+
+    public long order() {
+        return order;
+    }
+
+    /**
+     * @return a uniformly chosen element of the group as cell permutation
+     */
+    public int[] randomElement(Random rnd) {
+        return randomElement(rnd, new int[topo.size], new int[factors.length]);
+    }
+
+    /**
+     * Writes a uniformly chosen element into out without allocating, idx
+     * receives the chosen element of each factor.
+     */
+    public int[] randomElement(Random rnd, int[] out, int[] idx) {
+        for (int f = 0; f < factors.length; f++) {
+            idx[f] = rnd.nextInt(factors[f].length);
+        }
+        for (int i = 0; i < out.length; i++) {
+            int p = i;
+            for (int f = 0; f < factors.length; f++) {
+                p = factors[f][idx[f]][p];
+            }
+            out[i] = p;
+        }
+        return out;
+    }
+
+    /**
+     * Moves the value of cell i to cell perm[i] and relabels value v to
+     * relabel[v], relabel[0] has to be 0.
+     */
+    public int[] apply(int[] cells, int[] perm, int[] relabel, int[] out) {
+        for (int i = 0; i < cells.length; i++) {
+            out[perm[i]] = relabel[cells[i]];
+        }
+        return out;
+    }
+
+    /**
+     * @return a random permutation of 1..symbols, fixing 0
+     */
+    public int[] randomRelabeling(Random rnd) {
+        return randomRelabeling(rnd, new int[topo.symbols + 1]);
+    }
+
+    public int[] randomRelabeling(Random rnd, int[] r) {
+        r[0] = 0;
+        for (int v = 1; v < r.length; v++) {
+            int k = 1 + rnd.nextInt(v);
+            r[v] = r[k];
+            r[k] = v;
+        }
+        return r;
+    }
+
+    /**
+     * A grid is canonical if no group element combined with a relabeling in
+     * order of first appearance yields a lexicographically smaller cell
+     * array. The grid itself has to be relabeled in that order already.
+     */
+    public boolean isCanonical(int[] cells) {
+        int n = topo.size;
+        int[] idx = new int[factors.length];
+        int[] relabel = new int[topo.symbols + 1];
+        while (true) {
+            Arrays.fill(relabel, 0);
+            int next = 1;
+            for (int k = 0; k < n; k++) {
+                int src = k;
+                for (int f = 0; f < factors.length; f++) {
+                    src = inverses[f][idx[f]][src];
+                }
+                int v = cells[src];
+                if (v != 0) {
+                    if (relabel[v] == 0) {
+                        relabel[v] = next++;
+                    }
+                    v = relabel[v];
+                } else {
+                    v = topo.symbols + 1;
+                }
+                int c = cells[k] == 0 ? topo.symbols + 1 : cells[k];
+                if (v < c) {
+                    return false;
+                }
+                if (v > c) {
+                    break;
+                }
+            }
+            int f = factors.length - 1;
+            while (f >= 0 && ++idx[f] == factors[f].length) {
+                idx[f--] = 0;
+            }
+            if (f < 0) {
+                return true;
+            }
+        }
+    }
+
+    public CanonicalForm canonicalize(Sudoku s) {
+        return canonicalize(topo.encode(s));
+    }
+
+    /**
+     * Finds the group element and relabeling giving the lexicographically
+     * smallest cell array, empty cells sorting after all values. For a fixed
+     * element the best relabeling numbers the values in order of first
+     * appearance, so only the group has to be searched. The first factor runs
+     * innermost and is applied first, so elements of it sharing a prefix of
+     * their inverses produce the same prefix of cells: once an element exceeds
+     * the best array at some cell, all following elements agreeing with it up
+     * to that cell are skipped. StandardSudoku boards are canonicalized row
+     * by row by StandardCanonicalizer instead, unless they have too many
+     * symmetries for it.
+     */
+    public CanonicalForm canonicalize(int[] cells) {
+        if (standard != null) {
+            CanonicalForm f = standard.canonicalize(cells);
+            if (f != null) {
+                return f;
+            }
+        }
+        return search(cells);
+    }
+
+    /**
+     * The search of canonicalize() over the whole group.
+     */
+    CanonicalForm search(int[] cells) {
+        int n = topo.size;
+        int k = factors.length;
+        int empty = topo.symbols + 1;
+        int[] best = new int[n];
+        Arrays.fill(best, Integer.MAX_VALUE);
+        int[] cur = new int[n];
+        int[] idx = new int[k];
+        int[] bestIdx = new int[k];
+        int[] relabel = new int[topo.symbols + 1];
+        int[] stamp = new int[topo.symbols + 1];
+        int round = 0;
+        int[] suffix = new int[n];
+        int[] id = new int[n];
+        for (int i = 0; i < n; i++) {
+            id[i] = i;
+        }
+        int[][] first = k > 0 ? inverses[0] : new int[][]{id};
+        int[] lcp = k > 0 ? prefixLengths[0] : new int[1];
+        boolean outerChanged = true;
+        while (true) {
+            if (outerChanged) {
+                for (int i = 0; i < n; i++) {
+                    int src = i;
+                    for (int f = 1; f < k; f++) {
+                        src = inverses[f][idx[f]][src];
+                    }
+                    suffix[i] = src;
+                }
+            }
+            int e = k > 0 ? idx[0] : 0;
+            int[] inner = first[e];
+            round++;
+            int next = 1;
+            boolean better = false;
+            for (int i = 0; i < n; i++) {
+                int v = cells[suffix[inner[i]]];
+                if (v == 0) {
+                    v = empty;
+                } else {
+                    if (stamp[v] != round) {
+                        stamp[v] = round;
+                        relabel[v] = next++;
+                    }
+                    v = relabel[v];
+                }
+                if (!better) {
+                    if (v > best[i]) {
+                        while (e + 1 < first.length && lcp[e] > i) {
+                            e++;
+                        }
+                        break;
+                    }
+                    if (v < best[i]) {
+                        better = true;
+                    }
+                }
+                cur[i] = v;
+            }
+            if (better) {
+                System.arraycopy(cur, 0, best, 0, n);
+                System.arraycopy(idx, 0, bestIdx, 0, k);
+            }
+            if (k == 0) {
+                break;
+            }
+            idx[0] = e;
+            int f = 0;
+            while (f < k && ++idx[f] == factors[f].length) {
+                idx[f++] = 0;
+            }
+            if (f == k) {
+                break;
+            }
+            outerChanged = f > 0;
+        }
+
+        int[] perm = id.clone();
+        for (int f = k - 1; f >= 0; f--) {
+            perm = compose(factors[f][bestIdx[f]], perm);
+        }
+        // relabel in order of first appearance, unused values keep their order
+        Arrays.fill(relabel, 0);
+        int[] inv = invert(perm);
+        int next = 1;
+        for (int i = 0; i < n; i++) {
+            int v = cells[inv[i]];
+            if (v != 0 && relabel[v] == 0) {
+                relabel[v] = next++;
+            }
+        }
+        for (int v = 1; v < relabel.length; v++) {
+            if (relabel[v] == 0) {
+                relabel[v] = next++;
+            }
+        }
+        int[] canonical = new int[n];
+        for (int i = 0; i < n; i++) {
+            canonical[perm[i]] = relabel[cells[i]];
+        }
+        return new CanonicalForm(topo, canonical, perm, relabel);
+    }
+}
@@ -22,7 +22,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -31,6 +35,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class SudokuToolkit {
 
+    static final boolean DEBUG = false;
+
     private static int hamWt(boolean[] ba) {
         int hw = 0;
         for (boolean b : ba) {
@@ -110,8 +116,11 @@ public class SudokuToolkit {
                 int index = s.numberInPalette(s.getValue(n));
                 if (index != -1) {
                     if (p.get(n)[index] == false) {
-                        System.out.println("Invalid sudoku: " + n + " cannot be set to " + s.getPalette()[index]);
-                        System.out.println(s.toPlaintext());
+                        // also reached in dead branches of the search
+                        if (DEBUG) {
+                            System.err.println("Invalid sudoku: " + n + " cannot be set to " + s.getPalette()[index]);
+                            System.err.println(s.toPlaintext());
+                        }
                         return slns;
                     }
                     for (Node m : sn) {
@@ -229,8 +238,11 @@ public class SudokuToolkit {
                 int index = s.numberInPalette(s.getValue(n));
                 if (index != -1) {
                     if (p.get(n)[index] == false) {
-                        System.out.println("Invalid sudoku: " + n + " cannot be set to " + s.getPalette()[index]);
-                        System.out.println(s.toPlaintext());
+                        // also reached in dead branches of the search
+                        if (DEBUG) {
+                            System.err.println("Invalid sudoku: " + n + " cannot be set to " + s.getPalette()[index]);
+                            System.err.println(s.toPlaintext());
+                        }
                         return cSlns;
                     }
                     for (Node m : sn) {
@@ -307,6 +319,22 @@ public class SudokuToolkit {
     }
 
     static public Sudoku randomPuzzleFromSolution(Sudoku S) throws Exception {
+        return randomPuzzleFromSolution(S, Runtime.getRuntime().availableProcessors());
+    }
+
+    static public Sudoku randomPuzzleFromSolution(Sudoku S, int threads) throws Exception {
+        return randomPuzzleFromSolution(S, threads, System.currentTimeMillis() + S.TIME_FOR_RPFS(),
+                new ClueMasks(new Random()));
+    }
+
+    /**
+     * Searches removal orders until the deadline (in milliseconds) or until
+     * c is cancelled, offering the candidates to c. With more than one
+     * thread the first FORK_DEPTH removals of every order are tasks of a
+     * fork/join pool, so a worker that runs out of work steals subtrees
+     * from the others instead of idling.
+     */
+    static Sudoku randomPuzzleFromSolution(Sudoku S, int threads, long deadline, ClueMasks c) throws Exception {
         for (Node n : S.getNodes()) {
             if (S.numberInPalette(S.getValue(n)) == -1) {
                 throw new Exception("Called randomPuzzleFromSolution on incomplete puzzle!");
@@ -316,52 +344,251 @@ public class SudokuToolkit {
         List<Node> nodeList = new ArrayList<>(S.getNodes());
         Collections.shuffle(nodeList);
         Node[] nodeArray = nodeList.toArray(new Node[0]);
+        c.start(S, nodeArray);
 
-        Set<Sudoku> candidates = new HashSet<>();
+        long[] all = new long[(nodeArray.length + 63) >> 6];
+        for (int j = 0; j < nodeArray.length; j++) {
+            all[j >> 6] |= 1L << j;
+        }
+        SudokuTopology topo = SudokuTopology.of(S);
+        int[] pos = new int[nodeArray.length];
+        for (int j = 0; j < nodeArray.length; j++) {
+            pos[topo.indexOf(nodeArray[j])] = j;
+        }
+        UnavoidableSets ua = UnavoidableSets.of(topo, topo.encode(S)).reorder(pos);
 
-        randomPuzzleFromSolution(S, candidates, nodeArray, 0, new AtomicInteger(0), 0, System.currentTimeMillis());
+        if (threads <= 1) {
+            randomPuzzleFromSolution(S, all, ua, c, nodeArray, 0, 0, deadline);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new Removals(S, all, ua, c, nodeArray, 0, 0, deadline));
+            } finally {
+                pool.shutdown();
+            }
+        }
 
-        if (candidates.size() > 0) {
-            List<Sudoku> candidatesList = new ArrayList<>(candidates);
-            Collections.shuffle(candidatesList);
-            return candidatesList.get(0);
+        long[] mask = c.get();
+        if (mask != null) {
+            return c.toSudoku(mask);
         } else {
             throw new Exception("randomPuzzleFromSolution failed!");
         }
     }
 
-    static public void randomPuzzleFromSolution(Sudoku S, Set<Sudoku> c, Node[] nArray, int depth, AtomicInteger maxdepth, int itemno, long tstart) {
-        if (System.currentTimeMillis() - tstart > S.TIME_FOR_RPFS()) {
-            return;
+    static final int FORK_DEPTH = 2;
+
+    /**
+     * Tries the removals below one state, each in a task of its own while
+     * the depth is below FORK_DEPTH and by randomPuzzleFromSolution below.
+     */
+    @SuppressWarnings("serial")
+    static private class Removals extends RecursiveAction {
+
+        private final Sudoku S;
+        private final long[] mask;
+        private final UnavoidableSets ua;
+        private final ClueMasks c;
+        private final Node[] nArray;
+        private final int depth, itemno;
+        private final long deadline;
+
+        Removals(Sudoku S, long[] mask, UnavoidableSets ua, ClueMasks c, Node[] nArray, int depth, int itemno, long deadline) {
+            this.S = S;
+            this.mask = mask;
+            this.ua = ua;
+            this.c = c;
+            this.nArray = nArray;
+            this.depth = depth;
+            this.itemno = itemno;
+            this.deadline = deadline;
         }
 
-        boolean minimum = true;
-        int isSlvb;
+        @Override
+        protected void compute() {
+            if (depth >= FORK_DEPTH) {
+                randomPuzzleFromSolution(S, mask, ua, c, nArray, depth, itemno, deadline);
+                return;
+            }
+            List<Removal> tasks = new ArrayList<>();
+            for (int j = itemno; j < nArray.length; j++) {
+                if (S.numberInPalette(S.getValue(nArray[j])) != -1) {
+                    tasks.add(new Removal(this, j));
+                }
+            }
+            invokeAll(tasks);
+            for (Removal t : tasks) {
+                if (t.join()) {
+                    return;
+                }
+            }
+            c.offer(mask, depth);
+        }
+    }
+
+    /**
+     * Removes the clue nArray[j] of a state and searches below it.
+     *
+     * @return whether the removal kept the solution unique
+     */
+    @SuppressWarnings("serial")
+    static private class Removal extends RecursiveTask<Boolean> {
+
+        private final Removals parent;
+        private final int j;
+
+        Removal(Removals parent, int j) {
+            this.parent = parent;
+            this.j = j;
+        }
 
-        Sudoku s2 = S.copy();
+        @Override
+        protected Boolean compute() {
+            Removals p = parent;
+            if (System.currentTimeMillis() > p.deadline || p.c.isCancelled()) {
+                return false; // the parent offers its state
+            }
+            long[] m = p.mask.clone();
+            m[j >> 6] &= ~(1L << j);
+            if (!p.ua.hitsAll(m)) {
+                return false;
+            }
+            Sudoku s = p.S.copy();
+            s.setValue(p.nArray[j], s.getEmpty());
+            if (isSolvable(s) != 1) {
+                return false;
+            }
+            new Removals(s, m, p.ua, p.c, p.nArray, p.depth + 1, j + 1, p.deadline).compute();
+            return true;
+        }
+    }
+
+    /**
+     * Removes the clues nArray[j] with j &gt;= itemno in increasing order, so
+     * every set of removed clues is visited at most once. A state from which
+     * no further clue can be removed is offered to c as clue mask, bit j
+     * being set iff nArray[j] is still given, as is the state reached when
+     * the time is up or c is cancelled. Removals leaving one of the
+     * unavoidable sets ua without clue are rejected before solving.
+     */
+    static void randomPuzzleFromSolution(Sudoku S, long[] mask, UnavoidableSets ua, ClueMasks c, Node[] nArray, int depth, int itemno, long deadline) {
+        boolean minimum = true;
 
         for (int j = itemno; j < nArray.length; j++) {
+            if (System.currentTimeMillis() > deadline || c.isCancelled()) {
+                // out of time, the deepest state reached still counts
+                c.offer(mask, depth);
+                return;
+            }
             Node n = nArray[j];
-            if (s2.numberInPalette(s2.getValue(n)) != -1) {
-                Sudoku s = s2.copy();
+            if (S.numberInPalette(S.getValue(n)) != -1) {
+                long[] m = mask.clone();
+                m[j >> 6] &= ~(1L << j);
+                if (!ua.hitsAll(m)) {
+                    continue;
+                }
+                Sudoku s = S.copy();
                 s.setValue(n, s.getEmpty());
-                isSlvb = isSolvable(s);
-                if (isSlvb == 1) {
+                if (isSolvable(s) == 1) {
                     minimum = false;
-                    if (System.currentTimeMillis() - tstart < S.TIME_FOR_RPFS()) {
-                        randomPuzzleFromSolution(s, c, nArray, depth + 1, maxdepth, itemno + 1, tstart);
-                    } else {
-                        return;
-                    }
+                    randomPuzzleFromSolution(s, m, ua, c, nArray, depth + 1, j + 1, deadline);
                 }
-                if (minimum && depth >= maxdepth.intValue()) {
-                    if (depth > maxdepth.intValue()) {
-                        maxdepth.set(depth);
-                        c.clear();
-                    }
-                    c.add(s2);
+            }
+        }
+        if (minimum) {
+            c.offer(mask, depth);
+        }
+    }
+
+    /**
+     * Keeps one uniformly chosen clue mask among those of the greatest depth
+     * offered so far (reservoir sampling), so memory does not grow with the
+     * number of candidates. Subclasses may watch the search by deeper().
+     */
+    static class ClueMasks {
+
+        private final Random rnd;
+        private final AtomicInteger maxdepth = new AtomicInteger(-1);
+        private long[] chosen = null;
+        private long seen = 0;
+        private volatile boolean cancelled = false;
+        private Sudoku solution;
+        private Node[] nodes;
+
+        ClueMasks(Random random) {
+            rnd = random;
+        }
+
+        /**
+         * Called by the search with the solution and the node order the
+         * masks refer to.
+         */
+        synchronized void start(Sudoku S, Node[] nArray) {
+            solution = S;
+            nodes = nArray;
+        }
+
+        void offer(long[] mask, int depth) {
+            if (depth < maxdepth.get()) {
+                return;
+            }
+            boolean deeper = false;
+            synchronized (this) {
+                if (depth > maxdepth.get()) {
+                    maxdepth.set(depth);
+                    seen = 0;
+                    deeper = true;
+                }
+                if (depth == maxdepth.get() && (rnd.nextLong() & Long.MAX_VALUE) % ++seen == 0) {
+                    chosen = mask;
                 }
             }
+            if (deeper) {
+                deeper(mask, depth);
+            }
+        }
+
+        /**
+         * Called on a search thread when a mask deeper than all offered
+         * before comes in, possibly by several threads at once.
+         */
+        void deeper(long[] mask, int depth) {
+        }
+
+        /**
+         * @return the puzzle of the solution with the clues of mask
+         */
+        synchronized Sudoku toSudoku(long[] mask) {
+            Sudoku s = solution.copy();
+            for (int j = 0; j < nodes.length; j++) {
+                if ((mask[j >> 6] & (1L << j)) == 0) {
+                    s.setValue(nodes[j], s.getEmpty());
+                }
+            }
+            return s;
+        }
+
+        /**
+         * Makes the search stop soon, offering the states it has reached.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        synchronized long[] get() {
+            return chosen;
+        }
+
+        int getDepth() {
+            return maxdepth.get();
+        }
+
+        synchronized long getCount() {
+            return seen;
         }
     }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index based view of the adjacency of one Sudoku class. Nodes are numbered
+ * in (i,j) order, cells are stored as 0 for empty and 1..symbols for the
+ * palette entries, candidates as bit masks with bit d-1 standing for value d.
+ *
+ * @author Sora Steenvoort
+ */
+public class SudokuTopology {
+
+    static final private Map<Class<?>, SudokuTopology> topologies = new HashMap<>();
+
+    final Class<? extends Sudoku> cls;
+    final Sudoku template;
+    final Node[] nodes;
+    final Map<Node, Integer> index;
+    final int[][] peers;
+    final int[][] houses; // cliques of exactly symbols nodes
+    final int[][] housesOf;
+    final int size, symbols, all;
+    final char[] palette;
+    final char empty;
+    private PropagationKernel kernel;
+    private boolean kernelResolved = false;
+
+    static public synchronized SudokuTopology of(Class<?> cls) {
+        SudokuTopology t = topologies.get(cls);
+        if (t == null) {
+            try {
+                t = new SudokuTopology((Sudoku) cls.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalArgumentException("Cannot compile topology of " + cls.getName(), e);
+            }
+            topologies.put(cls, t);
+        }
+        return t;
+    }
+
+    static public SudokuTopology of(Sudoku s) {
+        return of(s.getClass());
+    }
+
+    private SudokuTopology(Sudoku s) {
+        cls = s.getClass();
+        template = s;
+        palette = s.getPalette();
+        empty = s.getEmpty();
+        symbols = palette.length;
+        all = (1 << symbols) - 1;
+
+        List<Node> nodeList = new ArrayList<>(s.getNodes());
+        Collections.sort(nodeList, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                Node2D A = (Node2D) a;
+                Node2D B = (Node2D) b;
+                if (A.getI() != B.getI()) {
+                    return A.getI() < B.getI() ? -1 : 1;
+                }
+                return A.getJ() < B.getJ() ? -1 : (A.getJ() == B.getJ() ? 0 : 1);
+            }
+        });
+        nodes = nodeList.toArray(new Node[0]);
+        size = nodes.length;
+        index = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            index.put(nodes[i], i);
+        }
+
+        peers = new int[size][];
+        long[][] adj = new long[size][words(size)];
+        for (int i = 0; i < size; i++) {
+            HashSet<Node> sn = s.getAdjacency().get(nodes[i]);
+            List<Integer> pl = new ArrayList<>();
+            for (int j = 0; j < size; j++) {
+                if (i != j && sn.contains(nodes[j])) {
+                    pl.add(j);
+                    adj[i][j >> 6] |= 1L << j;
+                }
+            }
+            peers[i] = toArray(pl);
+        }
+
+        // houses are the maximal cliques holding every palette entry once
+        List<int[]> houseList = new ArrayList<>();
+        long[] p = new long[words(size)];
+        for (int i = 0; i < size; i++) {
+            p[i >> 6] |= 1L << i;
+        }
+        cliques(adj, new long[words(size)], p, new long[words(size)], houseList);
+        houses = houseList.toArray(new int[0][]);
+
+        housesOf = new int[size][];
+        for (int i = 0; i < size; i++) {
+            List<Integer> hl = new ArrayList<>();
+            for (int h = 0; h < houses.length; h++) {
+                if (Arrays.binarySearch(houses[h], i) >= 0) {
+                    hl.add(h);
+                }
+            }
+            housesOf[i] = toArray(hl);
+        }
+    }
+
+    private void cliques(long[][] adj, long[] r, long[] p, long[] x, List<int[]> out) {
+        if (isEmpty(p) && isEmpty(x)) {
+            if (count(r) == symbols) {
+                int[] h = new int[symbols];
+                int k = 0;
+                for (int i = 0; i < size; i++) {
+                    if ((r[i >> 6] & (1L << i)) != 0) {
+                        h[k++] = i;
+                    }
+                }
+                out.add(h);
+            }
+            return;
+        }
+        if (count(r) + count(p) < symbols) {
+            return;
+        }
+        int pivot = -1;
+        for (int i = 0; i < size && pivot == -1; i++) {
+            if (((p[i >> 6] | x[i >> 6]) & (1L << i)) != 0) {
+                pivot = i;
+            }
+        }
+        for (int v = 0; v < size; v++) {
+            long bit = 1L << v;
+            if ((p[v >> 6] & bit) == 0 || (adj[pivot][v >> 6] & bit) != 0) {
+                continue;
+            }
+            long[] r2 = r.clone();
+            long[] p2 = new long[p.length];
+            long[] x2 = new long[x.length];
+            r2[v >> 6] |= bit;
+            for (int w = 0; w < p.length; w++) {
+                p2[w] = p[w] & adj[v][w];
+                x2[w] = x[w] & adj[v][w];
+            }
+            cliques(adj, r2, p2, x2, out);
+            p[v >> 6] &= ~bit;
+            x[v >> 6] |= bit;
+        }
+    }
+
+    static int words(int bits) {
+        return (bits + 63) >> 6;
+    }
+
+    private static boolean isEmpty(long[] b) {
+        for (long l : b) {
+            if (l != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int count(long[] b) {
+        int c = 0;
+        for (long l : b) {
+            c += Long.bitCount(l);
+        }
+        return c;
+    }
+
+    private static int[] toArray(List<Integer> l) {
+        int[] a = new int[l.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = l.get(i);
+        }
+        return a;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int symbols() {
+        return symbols;
+    }
+
+    public Node node(int i) {
+        return nodes[i];
+    }
+
+    public int indexOf(Node n) {
+        return index.get(n);
+    }
+
+    public int[] encode(Sudoku s) {
+        return encode(s, new int[size]);
+    }
+
+    public int[] encode(Sudoku s, int[] cells) {
+        for (int i = 0; i < size; i++) {
+            cells[i] = s.numberInPalette(s.getValue(nodes[i])) + 1;
+        }
+        return cells;
+    }
+
+    /**
+     * @return a hash of the size, the palette size, the peers and the houses
+     */
+    public long fingerprint() {
+        long h = size * 31L + symbols;
+        for (int[] row : peers) {
+            h = h * 0x9E3779B97F4A7C15L + Arrays.hashCode(row);
+        }
+        for (int[] row : houses) {
+            h = h * 0x9E3779B97F4A7C15L + Arrays.hashCode(row);
+        }
+        return h;
+    }
+
+    /**
+     * @return the PropagationKernel generated for this topology, null if the
+     * build did not generate one (see the generate-kernels target) or it is
+     * outdated
+     */
+    synchronized PropagationKernel kernel() {
+        if (!kernelResolved) {
+            kernelResolved = true;
+            try {
+                Class<?> k = Class.forName("de.rub.sudokucube." + KernelGenerator.kernelName(cls));
+                PropagationKernel pk = (PropagationKernel) k.getDeclaredConstructor().newInstance();
+                if (pk.fingerprint() == fingerprint()) {
+                    kernel = pk;
+                } else {
+                    System.err.println("Outdated " + k.getName() + ", using the generic propagation");
+                }
+            } catch (ClassNotFoundException e) {
+                // not generated, e.g. when compiled without build.xml
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                System.err.println(e);
+            }
+        }
+        return kernel;
+    }
+
+    public Sudoku decode(int[] cells) {
+        Sudoku s = template.copy();
+        for (int i = 0; i < size; i++) {
+            s.setValue(nodes[i], cells[i] == 0 ? empty : palette[cells[i] - 1]);
+            s.getGiven().put(nodes[i], true);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Small unavoidable sets of a solution grid: sets of cells that can be
+ * filled differently while all other cells keep their values. A puzzle with
+ * a unique solution has a clue in every unavoidable set, so clue sets missing
+ * one can be rejected without solving. The sets are found by emptying the
+ * cells of every 2 and 3 digit subset and enumerating the other fillings.
+ *
+ * @author Sora Steenvoort
+ */
+public class UnavoidableSets {
+
+    static final int MAX_DIGITS = 3;
+    static final int MAX_FILLINGS = 64; // per digit subset
+    static final int MAX_SETS = 512;
+
+    final long[][] sets; // bit i set iff cell i belongs to the set
+
+    private UnavoidableSets(long[][] s) {
+        sets = s;
+    }
+
+    /**
+     * Computes the unavoidable sets of a solution grid, cells indexed as in
+     * the SudokuTopology.
+     */
+    static public UnavoidableSets of(SudokuTopology topo, final int[] solution) {
+        final int words = SudokuTopology.words(topo.size);
+        final List<long[]> found = new ArrayList<>();
+        SudokuSolver solver = new SudokuSolver(topo);
+        int[] cells = new int[topo.size];
+        int[] cand = new int[topo.size];
+        for (int digits = 1; digits < 1 << topo.symbols; digits++) {
+            int k = Integer.bitCount(digits);
+            if (k < 2 || k > MAX_DIGITS) {
+                continue;
+            }
+            for (int i = 0; i < topo.size; i++) {
+                cells[i] = (digits & (1 << (solution[i] - 1))) != 0 ? 0 : solution[i];
+            }
+            if (!solver.load(cells, cand)) {
+                continue;
+            }
+            solver.enumerate(cand, new SudokuSolver.Visitor() {
+                int fillings = 0;
+
+                @Override
+                public boolean visit(int[] other) {
+                    long[] set = new long[words];
+                    boolean differs = false;
+                    for (int i = 0; i < other.length; i++) {
+                        if (other[i] != solution[i]) {
+                            set[i >> 6] |= 1L << i;
+                            differs = true;
+                        }
+                    }
+                    if (differs) {
+                        found.add(set);
+                    }
+                    return ++fillings < MAX_FILLINGS;
+                }
+            });
+        }
+        return new UnavoidableSets(minimal(found));
+    }
+
+    static public UnavoidableSets of(Sudoku solution) {
+        SudokuTopology topo = SudokuTopology.of(solution);
+        return of(topo, topo.encode(solution));
+    }
+
+    /**
+     * @return the smallest sets, dropping every set containing another one
+     */
+    static private long[][] minimal(List<long[]> found) {
+        Collections.sort(found, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Integer.compare(bitCount(a), bitCount(b));
+            }
+        });
+        List<long[]> kept = new ArrayList<>();
+        for (long[] s : found) {
+            boolean superset = false;
+            for (long[] t : kept) {
+                if (contains(s, t)) {
+                    superset = true;
+                    break;
+                }
+            }
+            if (!superset) {
+                kept.add(s);
+                if (kept.size() == MAX_SETS) {
+                    break;
+                }
+            }
+        }
+        return kept.toArray(new long[0][]);
+    }
+
+    static private int bitCount(long[] a) {
+        int ct = 0;
+        for (long w : a) {
+            ct += Long.bitCount(w);
+        }
+        return ct;
+    }
+
+    static private boolean contains(long[] a, long[] b) {
+        for (int w = 0; w < a.length; w++) {
+            if ((b[w] & ~a[w]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return sets.length;
+    }
+
+    /**
+     * Moves bit i of every set to bit pos[i], e.g. to match the clue masks of
+     * a shuffled node array.
+     */
+    public UnavoidableSets reorder(int[] pos) {
+        long[][] r = new long[sets.length][];
+        for (int k = 0; k < sets.length; k++) {
+            r[k] = new long[SudokuTopology.words(pos.length)];
+            for (int i = 0; i < pos.length; i++) {
+                if ((sets[k][i >> 6] & (1L << i)) != 0) {
+                    r[k][pos[i] >> 6] |= 1L << pos[i];
+                }
+            }
+        }
+        return new UnavoidableSets(r);
+    }
+
+    /**
+     * @return false if some set contains none of the clues, i.e. the clues
+     * cannot determine the solution uniquely
+     */
+    public boolean hitsAll(long[] clues) {
+        for (long[] s : sets) {
+            boolean hit = false;
+            for (int w = 0; w < s.length; w++) {
+                if ((s[w] & clues[w]) != 0) {
+                    hit = true;
+                    break;
+                }
+            }
+            if (!hit) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Sora Steenvoort
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rub.sudokucube;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sora Steenvoort
+ */
+public class PortfolioSolverTest {
+
+    static final long LATE = 300; // milliseconds before the slow engine starts
+
+    /**
+     * Answers at once.
+     */
+    static class Fast implements SolutionCounter {
+
+        @Override
+        public long count(int[] cells, long limit) {
+            return 1;
+        }
+
+        @Override
+        public long getNodes() {
+            return 0;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void resume() {
+        }
+    }
+
+    /**
+     * Starts only after the fast engine has won, then counts every solution
+     * of the cells, which for an empty grid ends only by cancel().
+     */
+    static class Late extends SudokuSolver {
+
+        Late(SudokuTopology topology) {
+            super(topology);
+        }
+
+        @Override
+        public long count(int[] cells, long limit) {
+            try {
+                Thread.sleep(LATE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.count(cells, Long.MAX_VALUE);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void cancelReachesEngineStartingAfterTheWin() {
+        SudokuTopology topo = SudokuTopology.of(StandardSudoku.class);
+        Map<String, SudokuBench.Setup> strategies = new LinkedHashMap<>();
+        strategies.put("fast", new SudokuBench.Setup() {
+            @Override
+            public SolutionCounter create(SudokuTopology topo) {
+                return new Fast();
+            }
+        });
+        strategies.put("late", new SudokuBench.Setup() {
+            @Override
+            public SolutionCounter create(SudokuTopology topo) {
+                return new Late(topo);
+            }
+        });
+        PortfolioSolver portfolio = new PortfolioSolver(topo, strategies);
+        try {
+            for (int k = 0; k < 3; k++) {
+                long t0 = System.currentTimeMillis();
+                assertEquals(1, portfolio.count(new int[topo.size], 2));
+                assertEquals("fast", portfolio.getLastWinner());
+                long t = System.currentTimeMillis() - t0;
+                assertTrue("count() took " + t + " ms", t < LATE + 2000);
+            }
+        } finally {
+            portfolio.shutdown();
+        }
+    }
+}